@@ -0,0 +1,108 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Builds the AppCDS archive used by the launcher. Each common command is run once from the jar, in its own JVM,
+ * as the launcher runs it, with {@code -XX:DumpLoadedClassList}; the lists are merged and dumped with
+ * {@code -Xshare:dump} by the same {@code java}, since an archive only works with the JVM build that created it.
+ * <p>
+ * Arguments: {@code {jar} {archive.jsa} {work-dir}}.
+ */
+public class CdsTraining {
+
+    private static final List<List<String>> TRAINING = List.of(
+            List.of("init"),
+            List.of("add", "a.txt"),
+            List.of("add", "b.txt", "-m", "Second file"),
+            List.of("commit", "a.txt"),
+            List.of("status"),
+            List.of("history"),
+            List.of("history", "-last", "1"),
+            List.of("version"),
+            List.of("version", "1"),
+            List.of("checkout", "1"),
+            List.of("detach", "b.txt"),
+            List.of("fsck"),
+            List.of("unknown"));
+
+    public static void main(String... args) throws IOException, InterruptedException
+    {
+        if (args.length < 3)
+        {
+            System.err.println("Usage: CdsTraining {jar} {archive.jsa} {work-dir}");
+            System.exit(2);
+        }
+        Path jar = Path.of(args[0]).toAbsolutePath();
+        Path archive = Path.of(args[1]).toAbsolutePath();
+        Path work = Path.of(args[2]).toAbsolutePath();
+        String java = javaExecutable();
+
+        deleteRecursively(work);
+        Path repo = Files.createDirectories(work.resolve("repo"));
+        Files.writeString(repo.resolve("a.txt"), "first\n");
+        Files.writeString(repo.resolve("b.txt"), "second\n");
+
+        Set<String> classes = new LinkedHashSet<>();
+        for (int i = 0; i < TRAINING.size(); i++)
+        {
+            if (i == 3)
+            {
+                Files.writeString(repo.resolve("a.txt"), "first, changed\n");
+            }
+            Path list = work.resolve("classes-" + i + ".list");
+            List<String> command = new ArrayList<>(List.of(java, "-XX:DumpLoadedClassList=" + list, "-cp", jar.toString(), Gvt.class.getName()));
+            command.addAll(TRAINING.get(i));
+            // exit codes do not matter here (the unknown command fails on purpose), only the loaded classes
+            new ProcessBuilder(command).directory(repo.toFile())
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start().waitFor();
+            for (String line : Files.readAllLines(list))
+            {
+                if (!line.startsWith("#"))
+                {
+                    classes.add(line);
+                }
+            }
+        }
+
+        Path merged = work.resolve("classes.list");
+        Files.write(merged, classes);
+        Files.createDirectories(archive.getParent());
+        Files.deleteIfExists(archive);
+        List<String> dump = List.of(java, "-Xshare:dump", "-XX:SharedClassListFile=" + merged,
+                "-XX:SharedArchiveFile=" + archive, "-cp", jar.toString());
+        // warnings about skipped JDK classes are expected while dumping; keep them for diagnosis only
+        Path log = work.resolve("dump.log");
+        int code = new ProcessBuilder(dump).redirectErrorStream(true).redirectOutput(log.toFile()).start().waitFor();
+        if (code != 0)
+        {
+            throw new IOException("CDS dump failed with code " + code + ":\n" + Files.readString(log));
+        }
+        System.out.println("CDS archive: " + archive + " (" + classes.size() + " classes, " + Files.size(archive) / 1024 + " KiB)");
+        deleteRecursively(work);
+    }
+
+    static String javaExecutable()
+    {
+        return Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    }
+
+    static void deleteRecursively(Path path) throws IOException
+    {
+        if (!Files.exists(path))
+        {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(path))
+        {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).toList())
+            {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package uj.wmii.pwj.gvt;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Replays a {@link Workload} through the command line entry point ({@link Gvt#mainInternal}), the same commands
+ * the acceptance scripts run, but in one JVM, so the numbers show the cost of the commands and not of JVM startup.
+ * Writes {@code {report-dir}/{workload}.json} and compares it with the stored baseline.
+ * <p>
+ * Arguments: {@code {workload.properties} {baseline.json} {report-dir} {work-dir}}.
+ * System properties: {@code load.tolerance} (allowed relative change, default 0.25)
+ * and {@code load.updateBaseline} (store the report as the new baseline instead of comparing).
+ */
+public class LoadHarness {
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    /**
+     * Metrics compared with the baseline, and whether a higher value is better.
+     */
+    private static final Map<String, Boolean> COMPARED = new LinkedHashMap<>();
+
+    static {
+        COMPARED.put("commandsPerSecond", true);
+        COMPARED.put("p50Millis", false);
+        COMPARED.put("p99Millis", false);
+        COMPARED.put("diskBytesPerVersion", false);
+        COMPARED.put("peakRssBytes", false);
+    }
+
+    private final Workload workload;
+    private final Path workDir;
+    private final Random random;
+    private final RecordingExitHandler exitHandler = new RecordingExitHandler();
+    private final Map<String, List<Long>> latencies = new TreeMap<>();
+    private Gvt gvt;
+    private int nextFile;
+
+    LoadHarness(Workload workload, Path workDir)
+    {
+        this.workload = workload;
+        this.workDir = workDir;
+        this.random = new Random(workload.seed());
+    }
+
+    public static void main(String... args) throws IOException
+    {
+        if (args.length < 4)
+        {
+            System.err.println("Usage: LoadHarness {workload.properties} {baseline.json} {report-dir} {work-dir}");
+            System.exit(2);
+        }
+        Workload workload = Workload.load(Path.of(args[0]));
+        Path baseline = Path.of(args[1]);
+        Path reportFile = Path.of(args[2]).resolve(workload.name() + ".json");
+        double tolerance = Double.parseDouble(System.getProperty("load.tolerance", "0.25"));
+
+        JsonObject report = new LoadHarness(workload, Path.of(args[3]).resolve(workload.name())).run();
+        Files.createDirectories(reportFile.getParent());
+
+        if (Boolean.getBoolean("load.updateBaseline"))
+        {
+            write(reportFile, report);
+            Files.createDirectories(baseline.toAbsolutePath().getParent());
+            write(baseline, report);
+            System.out.println("Baseline updated: " + baseline);
+            return;
+        }
+
+        JsonArray regressions = new JsonArray();
+        if (Files.exists(baseline))
+        {
+            JsonObject previous = GSON.fromJson(Files.readString(baseline), JsonObject.class);
+            for (String regression : regressions(previous, report, tolerance))
+            {
+                regressions.add(regression);
+            }
+        }
+        else
+        {
+            System.out.println("No baseline for workload " + workload.name() + ": " + baseline);
+        }
+        report.add("regressions", regressions);
+        write(reportFile, report);
+
+        System.out.printf(Locale.ROOT, "%s: %.1f commands/s, p50 %.2f ms, p99 %.2f ms, %d bytes/version, peak RSS %d MiB. Report: %s%n",
+                workload.name(), report.get("commandsPerSecond").getAsDouble(), report.get("p50Millis").getAsDouble(),
+                report.get("p99Millis").getAsDouble(), report.get("diskBytesPerVersion").getAsLong(),
+                report.get("peakRssBytes").getAsLong() / (1024 * 1024), reportFile);
+        if (!regressions.isEmpty())
+        {
+            for (JsonElement regression : regressions)
+            {
+                System.out.println("Regression: " + regression.getAsString());
+            }
+            System.exit(1);
+        }
+    }
+
+    JsonObject run() throws IOException
+    {
+        deleteRecursively(workDir);
+        Files.createDirectories(workDir);
+        gvt = new Gvt(exitHandler, GvtRepository.open(workDir));
+        GvtRepository repo = GvtRepository.open(workDir);
+
+        // commands report through System.out; keep thousands of messages out of the build log
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long started = System.nanoTime();
+        try {
+            execute("init");
+            for (int i = 0; i < workload.files(); i++)
+            {
+                addFile();
+            }
+            while (repo.lastVersion() < workload.versions())
+            {
+                switch (workload.command(random))
+                {
+                    case "add":
+                        addFile();
+                        break;
+                    case "commit":
+                        String file = fileName(random.nextInt(nextFile));
+                        writeContent(file);
+                        execute("commit", file);
+                        break;
+                    case "checkout":
+                        execute("checkout", String.valueOf(random.nextInt(repo.lastVersion() + 1)));
+                        break;
+                    case "history":
+                        execute("history", "-last", "10");
+                        break;
+                    case "status":
+                        execute("status");
+                        break;
+                    default:
+                        execute("version", String.valueOf(random.nextInt(repo.lastVersion() + 1)));
+                        break;
+                }
+            }
+        } finally {
+            System.setOut(out);
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        List<Long> all = new ArrayList<>();
+        JsonObject perCommand = new JsonObject();
+        for (Map.Entry<String, List<Long>> entry : latencies.entrySet())
+        {
+            all.addAll(entry.getValue());
+            JsonObject stats = new JsonObject();
+            stats.addProperty("count", entry.getValue().size());
+            stats.addProperty("p50Millis", percentile(entry.getValue(), 0.50));
+            stats.addProperty("p99Millis", percentile(entry.getValue(), 0.99));
+            perCommand.add(entry.getKey(), stats);
+        }
+        long diskBytes = size(workDir.resolve(".gvt"));
+        int versions = repo.lastVersion() + 1;
+        deleteRecursively(workDir);
+
+        JsonObject report = new JsonObject();
+        report.addProperty("workload", workload.name());
+        report.addProperty("files", nextFile);
+        report.addProperty("versions", versions);
+        report.addProperty("commands", all.size());
+        report.addProperty("seconds", seconds);
+        report.addProperty("commandsPerSecond", all.size() / seconds);
+        report.addProperty("p50Millis", percentile(all, 0.50));
+        report.addProperty("p99Millis", percentile(all, 0.99));
+        report.add("perCommand", perCommand);
+        report.addProperty("diskBytes", diskBytes);
+        report.addProperty("diskBytesPerVersion", diskBytes / versions);
+        report.addProperty("peakRssBytes", peakRss());
+        report.addProperty("java", System.getProperty("java.version"));
+        report.addProperty("processors", Runtime.getRuntime().availableProcessors());
+        return report;
+    }
+
+    /**
+     * Metrics that got worse than the baseline by more than the tolerance.
+     */
+    static List<String> regressions(JsonObject baseline, JsonObject report, double tolerance)
+    {
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, Boolean> metric : COMPARED.entrySet())
+        {
+            if (!baseline.has(metric.getKey()) || baseline.get(metric.getKey()).getAsDouble() <= 0)
+            {
+                continue;
+            }
+            double before = baseline.get(metric.getKey()).getAsDouble();
+            double now = report.get(metric.getKey()).getAsDouble();
+            double change = (now - before) / before;
+            if (metric.getValue() ? change < -tolerance : change > tolerance)
+            {
+                regressions.add(String.format(Locale.ROOT, "%s %.2f -> %.2f (%+.0f%%)", metric.getKey(), before, now, change * 100));
+            }
+        }
+        return regressions;
+    }
+
+    private void addFile() throws IOException
+    {
+        String file = fileName(nextFile++);
+        writeContent(file);
+        execute("add", file);
+    }
+
+    private void execute(String... args)
+    {
+        exitHandler.code = 0;
+        long started = System.nanoTime();
+        gvt.mainInternal(args);
+        long elapsed = System.nanoTime() - started;
+        if (exitHandler.code != 0)
+        {
+            throw new IllegalStateException("Command failed with code " + exitHandler.code + ": " + String.join(" ", args));
+        }
+        latencies.computeIfAbsent(args[0], k -> new ArrayList<>()).add(elapsed);
+    }
+
+    private static String fileName(int number)
+    {
+        return "file" + number + ".txt";
+    }
+
+    /**
+     * Replaces the file with random text lines of a size drawn from the workload.
+     */
+    private void writeContent(String file) throws IOException
+    {
+        int size = workload.size(random);
+        StringBuilder content = new StringBuilder(size);
+        while (content.length() < size)
+        {
+            int line = Math.min(size - content.length(), 16 + random.nextInt(64));
+            for (int i = 0; i < line - 1; i++)
+            {
+                content.append((char) ('a' + random.nextInt(26)));
+            }
+            content.append('\n');
+        }
+        Files.writeString(workDir.resolve(file), content, StandardCharsets.US_ASCII);
+    }
+
+    private static double percentile(List<Long> nanos, double percentile)
+    {
+        if (nanos.isEmpty())
+        {
+            return 0;
+        }
+        long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        int rank = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(rank, 0)] / 1e6;
+    }
+
+    /**
+     * Peak resident set size of this JVM (Linux {@code VmHWM}), or -1 where it is not available.
+     */
+    private static long peakRss()
+    {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status")))
+            {
+                if (line.startsWith("VmHWM:"))
+                {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+
+        }
+        return -1;
+    }
+
+    private static long size(Path directory) throws IOException
+    {
+        try (Stream<Path> walk = Files.walk(directory))
+        {
+            long total = 0;
+            for (Path path : walk.filter(Files::isRegularFile).toList())
+            {
+                total += Files.size(path);
+            }
+            return total;
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException
+    {
+        if (!Files.exists(path))
+        {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(path))
+        {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).toList())
+            {
+                Files.delete(p);
+            }
+        }
+    }
+
+    private static void write(Path file, JsonObject report) throws IOException
+    {
+        Files.writeString(file, GSON.toJson(report) + "\n");
+    }
+
+    private static class RecordingExitHandler extends ExitHandler {
+
+        private int code;
+
+        @Override
+        void exitOperation(int code)
+        {
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package uj.wmii.pwj.gvt;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Measures the wall time of short commands started as separate processes, as users and the acceptance scripts
+ * start them: plain {@code java -jar} against the launcher script with its CDS archive.
+ * Writes {@code {report-dir}/startup.json}.
+ * <p>
+ * Arguments: {@code {jar} {launcher} {report-dir} {work-dir}}. System property {@code startup.runs}
+ * sets the measured runs per command (default 10), after two warm-up runs that fill the OS caches.
+ */
+public class StartupBenchmark {
+
+    private static final int WARMUP = 2;
+
+    private static final List<List<String>> COMMANDS = List.of(
+            List.of("version"),
+            List.of("history", "-last", "1"),
+            List.of("status"));
+
+    public static void main(String... args) throws IOException, InterruptedException
+    {
+        if (args.length < 4)
+        {
+            System.err.println("Usage: StartupBenchmark {jar} {launcher} {report-dir} {work-dir}");
+            System.exit(2);
+        }
+        Path jar = Path.of(args[0]).toAbsolutePath();
+        Path launcher = Path.of(args[1]).toAbsolutePath();
+        Path reportFile = Path.of(args[2]).resolve("startup.json");
+        Path work = Path.of(args[3]).toAbsolutePath();
+        int runs = Integer.getInteger("startup.runs", 10);
+        String java = CdsTraining.javaExecutable();
+
+        CdsTraining.deleteRecursively(work);
+        Path repo = Files.createDirectories(work.resolve("repo"));
+        List<String> plain = List.of(java, "-jar", jar.toString());
+        for (int i = 0; i < 5; i++)
+        {
+            Files.writeString(repo.resolve("file" + i + ".txt"), "content " + i + "\n");
+        }
+        run(repo, plain, List.of("init"));
+        for (int i = 0; i < 5; i++)
+        {
+            run(repo, plain, List.of("add", "file" + i + ".txt"));
+        }
+
+        Map<String, List<String>> variants = new LinkedHashMap<>();
+        variants.put("jar", plain);
+        boolean windows = System.getProperty("os.name").startsWith("Windows");
+        if (!windows && Files.isExecutable(launcher))
+        {
+            variants.put("launcher", List.of(launcher.toString()));
+        }
+
+        JsonObject commands = new JsonObject();
+        for (List<String> command : COMMANDS)
+        {
+            JsonObject results = new JsonObject();
+            StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-16s", String.join(" ", command)));
+            double plainMedian = 0;
+            for (Map.Entry<String, List<String>> variant : variants.entrySet())
+            {
+                for (int i = 0; i < WARMUP; i++)
+                {
+                    run(repo, variant.getValue(), command);
+                }
+                double[] millis = new double[runs];
+                for (int i = 0; i < runs; i++)
+                {
+                    millis[i] = run(repo, variant.getValue(), command);
+                }
+                Arrays.sort(millis);
+                double median = millis[runs / 2];
+                double mean = Arrays.stream(millis).average().orElse(0);
+                JsonObject stats = new JsonObject();
+                stats.addProperty("medianMillis", median);
+                stats.addProperty("meanMillis", mean);
+                stats.addProperty("minMillis", millis[0]);
+                if (variant.getKey().equals("jar"))
+                {
+                    plainMedian = median;
+                }
+                else
+                {
+                    stats.addProperty("speedup", plainMedian / median);
+                }
+                results.add(variant.getKey(), stats);
+                line.append(String.format(Locale.ROOT, "  %s %.1f ms", variant.getKey(), median));
+            }
+            commands.add(String.join(" ", command), results);
+            System.out.println(line);
+        }
+
+        JsonObject report = new JsonObject();
+        report.addProperty("java", System.getProperty("java.version"));
+        report.addProperty("runs", runs);
+        report.addProperty("cdsArchive", Files.exists(launcher.resolveSibling("gvt.jsa")));
+        report.add("commands", commands);
+        Files.createDirectories(reportFile.getParent());
+        Files.writeString(reportFile, new GsonBuilder().setPrettyPrinting().create().toJson(report) + "\n");
+        System.out.println("Startup report: " + reportFile);
+        CdsTraining.deleteRecursively(work);
+    }
+
+    /**
+     * @return wall time of the process in milliseconds
+     */
+    private static double run(Path directory, List<String> launcher, List<String> command) throws IOException, InterruptedException
+    {
+        List<String> commandLine = new ArrayList<>(launcher);
+        commandLine.addAll(command);
+        ProcessBuilder builder = new ProcessBuilder(commandLine).directory(directory.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.INHERIT);
+        // the launcher must use the JVM the archive was dumped with
+        builder.environment().put("JAVA_HOME", System.getProperty("java.home"));
+        long started = System.nanoTime();
+        int code = builder.start().waitFor();
+        double millis = (System.nanoTime() - started) / 1e6;
+        if (code != 0)
+        {
+            throw new IOException("Command failed with code " + code + ": " + String.join(" ", commandLine));
+        }
+        return millis;
+    }
+}
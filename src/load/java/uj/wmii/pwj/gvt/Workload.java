@@ -0,0 +1,99 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Scripted load read from a properties file:
+ * <pre>
+ * files=100                                  files added before the mixed phase
+ * versions=500                               last version to reach (each add and commit creates one)
+ * sizes=512:60, 8192:30, 262144:10           file size in bytes : weight
+ * mix=commit:60, add:5, checkout:10, ...     command : weight, of add, commit, checkout, history, status, version
+ * seed=1                                     makes runs repeatable
+ * </pre>
+ */
+record Workload(String name, int files, int versions, NavigableMap<Integer, Integer> sizes,
+                NavigableMap<Integer, String> mix, long seed) {
+
+    static final List<String> COMMANDS = List.of("add", "commit", "checkout", "history", "status", "version");
+
+    static Workload load(Path file) throws IOException
+    {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file))
+        {
+            properties.load(reader);
+        }
+        String name = file.getFileName().toString().replaceFirst("\\.properties$", "");
+        try {
+            int files = Integer.parseInt(required(properties, "files"));
+            int versions = Integer.parseInt(required(properties, "versions"));
+            if (files < 1 || versions < files)
+            {
+                throw new IllegalArgumentException("Workload needs files >= 1 and versions >= files.");
+            }
+
+            NavigableMap<Integer, Integer> sizes = new TreeMap<>();
+            for (Map.Entry<String, Integer> entry : weights(required(properties, "sizes")).entrySet())
+            {
+                sizes.put(sizes.isEmpty() ? entry.getValue() : sizes.lastKey() + entry.getValue(), Integer.parseInt(entry.getKey()));
+            }
+            NavigableMap<Integer, String> mix = new TreeMap<>();
+            for (Map.Entry<String, Integer> entry : weights(required(properties, "mix")).entrySet())
+            {
+                if (!COMMANDS.contains(entry.getKey()))
+                {
+                    throw new IllegalArgumentException("Unknown command in mix: " + entry.getKey());
+                }
+                mix.put(mix.isEmpty() ? entry.getValue() : mix.lastKey() + entry.getValue(), entry.getKey());
+            }
+            if (!mix.containsValue("add") && !mix.containsValue("commit"))
+            {
+                throw new IllegalArgumentException("Mix must contain add or commit to reach the versions.");
+            }
+            return new Workload(name, files, versions, sizes, mix, Long.parseLong(properties.getProperty("seed", "1")));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Workload values must be integers: " + e.getMessage());
+        }
+    }
+
+    int size(Random random)
+    {
+        return sizes.higherEntry(random.nextInt(sizes.lastKey())).getValue();
+    }
+
+    String command(Random random)
+    {
+        return mix.higherEntry(random.nextInt(mix.lastKey())).getValue();
+    }
+
+    private static String required(Properties properties, String key)
+    {
+        String value = properties.getProperty(key);
+        if (value == null)
+        {
+            throw new IllegalArgumentException("Workload property missing: " + key);
+        }
+        return value;
+    }
+
+    private static Map<String, Integer> weights(String value)
+    {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String item : value.split(","))
+        {
+            String[] parts = item.trim().split(":");
+            int weight = parts.length == 2 ? Integer.parseInt(parts[1].trim()) : 0;
+            if (weight <= 0)
+            {
+                throw new IllegalArgumentException("Expected {value}:{positive weight}, got: " + item.trim());
+            }
+            weights.put(parts[0].trim(), weight);
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,295 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Line origins of tracked files, cached in {@code .gvt/blame/{file}} as
+ * <pre>
+ * {version} {hex-digest}      version and content the origins describe
+ * {origin}                    one line per line of that content: the version that introduced it
+ * </pre>
+ * A cache always describes the file in the last version: add and commit carry it forward with one
+ * {@link LineDiff} of the previous and new content, detach drops it, and operations that bring in versions
+ * from elsewhere clear all caches. Only UTF-8 text up to {@link #MAX_TRACKED_SIZE} is carried forward, and upkeep
+ * never fails the commit. A missing or stale cache is rebuilt by walking the file's revisions once.
+ * Origins in pruned versions are reported as the version they were squashed into.
+ */
+class Blame {
+
+    /**
+     * Larger files are not carried forward on commit; their cache is built when blame is asked for.
+     */
+    static final long MAX_TRACKED_SIZE = 1024 * 1024;
+
+    private final GvtRepository repo;
+    private final Path directory;
+
+    Blame(GvtRepository repo)
+    {
+        this.repo = repo;
+        this.directory = repo.catalog().resolve("blame");
+    }
+
+    List<BlameLine> lines(String name, int lastVersion, byte[] digest) throws IOException
+    {
+        List<String> lines = lines(repo.versionPath(lastVersion).resolve(name));
+        int[] origins = read(name, lastVersion, digest, lines.size());
+        if (origins == null)
+        {
+            origins = rebuild(name, lastVersion);
+            write(name, lastVersion, digest, origins);
+        }
+
+        VersionIndex index = repo.index();
+        Map<Integer, Integer> retained = new HashMap<>();
+        List<BlameLine> result = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); i++)
+        {
+            Integer version = retained.get(origins[i]);
+            if (version == null)
+            {
+                int v = origins[i];
+                while (v < lastVersion && index.isPruned(v))
+                {
+                    v++;
+                }
+                version = v;
+                retained.put(origins[i], version);
+            }
+            result.add(new BlameLine(version, lines.get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * A file was added in {@code version}: all its lines originate there.
+     */
+    void added(String name, int version, byte[] digest)
+    {
+        try {
+            List<String> lines = text(repo.versionPath(version).resolve(name));
+            if (lines == null)
+            {
+                drop(name);
+                return;
+            }
+            int[] origins = new int[lines.size()];
+            Arrays.fill(origins, version);
+            write(name, version, digest, origins);
+        } catch (IOException | RuntimeException e) {
+            // the version is already published; without a cache, blame builds one when asked
+            drop(name);
+        }
+    }
+
+    /**
+     * A file was committed in {@code version}; carries its cache forward from the previous version, if it is up to date.
+     */
+    void committed(String name, int previous, byte[] previousDigest, int version, byte[] digest)
+    {
+        try {
+            List<String> before = text(repo.versionPath(previous).resolve(name));
+            int[] origins = before == null ? null : read(name, previous, previousDigest, before.size());
+            if (origins == null)
+            {
+                drop(name);
+                return;
+            }
+            if (!Arrays.equals(previousDigest, digest))
+            {
+                List<String> after = text(repo.versionPath(version).resolve(name));
+                if (after == null)
+                {
+                    drop(name);
+                    return;
+                }
+                origins = evolve(before, origins, after, version);
+            }
+            write(name, version, digest, origins);
+        } catch (IOException | RuntimeException e) {
+            drop(name);
+        }
+    }
+
+    void detached(String name)
+    {
+        drop(name);
+    }
+
+    /**
+     * Drops every cache, for when versions were added or {@code last} moved other than by add, detach or commit.
+     */
+    void clear() throws IOException
+    {
+        if (!Files.isDirectory(directory))
+        {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory))
+        {
+            for (Path path : stream)
+            {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private int[] rebuild(String name, int lastVersion) throws IOException
+    {
+        VersionIndex index = repo.index();
+        int[] origins = null;
+        List<String> previous = null;
+        byte[] previousDigest = null;
+        for (int v = 0; v <= lastVersion; v++)
+        {
+            if (index.isPruned(v))
+            {
+                continue;
+            }
+            byte[] digest = repo.manifest(v).files().get(name);
+            if (digest == null)
+            {
+                // not tracked here: if added again later, it starts over
+                origins = null;
+                continue;
+            }
+            if (origins != null && Arrays.equals(digest, previousDigest))
+            {
+                continue;
+            }
+            List<String> lines = lines(repo.versionPath(v).resolve(name));
+            if (origins == null)
+            {
+                origins = new int[lines.size()];
+                Arrays.fill(origins, v);
+            }
+            else
+            {
+                origins = evolve(previous, origins, lines, v);
+            }
+            previous = lines;
+            previousDigest = digest;
+        }
+        return origins == null ? new int[0] : origins;
+    }
+
+    private static int[] evolve(List<String> before, int[] origins, List<String> after, int version)
+    {
+        int[] matches = LineDiff.match(before, after);
+        int[] next = new int[after.size()];
+        Arrays.fill(next, version);
+        for (int i = 0; i < matches.length; i++)
+        {
+            if (matches[i] >= 0)
+            {
+                next[matches[i]] = origins[i];
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Lines of a file small enough to be diffed on every commit, or null if it is larger than {@link #MAX_TRACKED_SIZE},
+     * binary or not UTF-8.
+     */
+    static List<String> text(Path file) throws IOException
+    {
+        if (Files.size(file) > MAX_TRACKED_SIZE)
+        {
+            return null;
+        }
+        byte[] content = Files.readAllBytes(file);
+        for (byte b : content)
+        {
+            if (b == 0)
+            {
+                return null;
+            }
+        }
+        try {
+            return split(StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(content)).toString());
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    static List<String> lines(Path file) throws IOException
+    {
+        return split(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    private static List<String> split(String content)
+    {
+        if (content.isEmpty())
+        {
+            return List.of();
+        }
+        List<String> lines = new ArrayList<>(Arrays.asList(content.split("\r?\n", -1)));
+        if (lines.get(lines.size() - 1).isEmpty())
+        {
+            lines.remove(lines.size() - 1);
+        }
+        return lines;
+    }
+
+    /**
+     * @return the cached origins, or null if there is no cache for this content of the file as of {@code version}
+     */
+    private int[] read(String name, int version, byte[] digest, int lineCount) throws IOException
+    {
+        Path cache = directory.resolve(name);
+        if (!Files.exists(cache))
+        {
+            return null;
+        }
+        List<String> content = Files.readAllLines(cache);
+        if (content.size() != lineCount + 1)
+        {
+            return null;
+        }
+        String[] header = content.get(0).split(" ");
+        int[] origins = new int[lineCount];
+        try {
+            if (header.length != 2 || Integer.parseInt(header[0]) > version || !header[1].equals(HashPipeline.hex(digest)))
+            {
+                return null;
+            }
+            for (int i = 0; i < lineCount; i++)
+            {
+                origins[i] = Integer.parseInt(content.get(i + 1));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return origins;
+    }
+
+    private void write(String name, int version, byte[] digest, int[] origins) throws IOException
+    {
+        StringBuilder content = new StringBuilder(origins.length * 4 + 80);
+        content.append(version).append(' ').append(HashPipeline.hex(digest)).append('\n');
+        for (int origin : origins)
+        {
+            content.append(origin).append('\n');
+        }
+        Files.createDirectories(directory);
+        // outside the directory, so it cannot collide with the cache of a file named like it
+        Path tmp = repo.catalog().resolve("blame.tmp");
+        Files.writeString(tmp, content);
+        Files.move(tmp, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void drop(String name)
+    {
+        try {
+            Files.deleteIfExists(directory.resolve(name));
+        } catch (IOException ignored) {
+
+        }
+    }
+}
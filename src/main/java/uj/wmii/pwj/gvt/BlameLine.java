@@ -0,0 +1,7 @@
+package uj.wmii.pwj.gvt;
+
+/**
+ * One line of a tracked file with the version that introduced it.
+ */
+public record BlameLine(int version, String line) {
+}
@@ -0,0 +1,142 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of stored file contents, kept off-heap in direct buffers and bounded by a byte budget.
+ * Useful for long-lived {@link GvtRepository} instances that check out the same versions repeatedly;
+ * the command line does not use it. Stored files are never modified, so entries do not go stale;
+ * {@link #clear()} must be called when stored files are removed. One cache may be shared by several repositories.
+ */
+public class BlobCache {
+
+    private final long capacity;
+    private final LinkedHashMap<Path, ByteBuffer> blobs = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public BlobCache(long capacityBytes)
+    {
+        if (capacityBytes < 0)
+        {
+            throw new IllegalArgumentException("Negative cache capacity: " + capacityBytes);
+        }
+        capacity = capacityBytes;
+    }
+
+    /**
+     * Writes the content of a stored file to {@code target}, from memory if possible.
+     */
+    public void copy(Path blob, Path target) throws IOException
+    {
+        ByteBuffer content = get(blob);
+        if (content == null)
+        {
+            Files.copy(blob, target, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            while (content.hasRemaining())
+            {
+                channel.write(content);
+            }
+        }
+    }
+
+    /**
+     * Read-only view of a stored file's content, or null if it does not fit in the cache.
+     */
+    ByteBuffer get(Path blob) throws IOException
+    {
+        Path key = blob.toAbsolutePath().normalize();
+        synchronized (this)
+        {
+            ByteBuffer cached = blobs.get(key);
+            if (cached != null)
+            {
+                hits++;
+                return cached.asReadOnlyBuffer();
+            }
+            misses++;
+        }
+
+        long length = Files.size(key);
+        if (length > capacity || length > Integer.MAX_VALUE)
+        {
+            return null;
+        }
+        ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+        try (FileChannel channel = FileChannel.open(key, StandardOpenOption.READ))
+        {
+            int read;
+            do {
+                read = channel.read(content);
+            } while (read >= 0 && content.hasRemaining());
+        }
+        content.flip();
+
+        synchronized (this)
+        {
+            ByteBuffer previous = blobs.put(key, content);
+            size += content.capacity() - (previous != null ? previous.capacity() : 0);
+            evict();
+        }
+        return content.asReadOnlyBuffer();
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<Path, ByteBuffer>> eldest = blobs.entrySet().iterator();
+        while (size > capacity && eldest.hasNext())
+        {
+            size -= eldest.next().getValue().capacity();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void clear()
+    {
+        blobs.clear();
+        size = 0;
+    }
+
+    public long capacity()
+    {
+        return capacity;
+    }
+
+    public synchronized long size()
+    {
+        return size;
+    }
+
+    public synchronized int entries()
+    {
+        return blobs.size();
+    }
+
+    public synchronized long hits()
+    {
+        return hits;
+    }
+
+    public synchronized long misses()
+    {
+        return misses;
+    }
+
+    public synchronized long evictions()
+    {
+        return evictions;
+    }
+}
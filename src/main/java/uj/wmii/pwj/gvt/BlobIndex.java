@@ -0,0 +1,158 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+
+/**
+ * Where the repository stores each distinct content, kept in {@code .gvt/blobs/{hex-digest}} as
+ * {@code {version} {file-name}} of one stored copy, so finding out whether some content is already stored
+ * takes one read instead of a scan of all manifests. Entries are added once their version is visible and moved
+ * to a retained version when prune removes the one they point to; an entry whose version is gone anyway is ignored.
+ * Repositories created before the index existed get it on first use, built from the manifests of the versions they
+ * still have.
+ */
+class BlobIndex {
+
+    private final GvtRepository repo;
+    private final Path directory;
+
+    BlobIndex(GvtRepository repo)
+    {
+        this.repo = repo;
+        this.directory = repo.catalog().resolve("blobs");
+    }
+
+    /**
+     * Creates the index of a new repository, which stores no content yet.
+     */
+    void create() throws IOException
+    {
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * @return a stored copy of the content, or null if the repository has none
+     */
+    synchronized Path find(String hex) throws IOException
+    {
+        build();
+        String entry;
+        try {
+            entry = Files.readString(directory.resolve(hex));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        int separator = entry.indexOf(' ');
+        int version;
+        try {
+            version = Integer.parseInt(entry.substring(0, Math.max(separator, 0)));
+        } catch (NumberFormatException e) {
+            // written only partly
+            return null;
+        }
+        Path copy = repo.versionPath(version).resolve(entry.substring(separator + 1));
+        return repo.index().contains(version) && Files.isRegularFile(copy) ? copy : null;
+    }
+
+    /**
+     * Records the contents of a version that has become visible.
+     */
+    synchronized void added(int version, Manifest manifest) throws IOException
+    {
+        if (!Files.isDirectory(directory))
+        {
+            // built with this version once it is needed
+            return;
+        }
+        add(directory, version, manifest);
+    }
+
+    /**
+     * Moves entries pointing to versions about to be deleted by prune to retained versions with the same content,
+     * and drops those of contents no retained version has. The removed versions must already be marked as pruned.
+     */
+    synchronized void pruned(Collection<Integer> removed) throws IOException
+    {
+        if (!Files.isDirectory(directory))
+        {
+            return;
+        }
+        Set<String> moved = new HashSet<>();
+        for (int v : removed)
+        {
+            if (!Files.exists(repo.versionPath(v)))
+            {
+                continue;
+            }
+            for (byte[] digest : repo.manifest(v).files().values())
+            {
+                String hex = HashPipeline.hex(digest);
+                Path entry = directory.resolve(hex);
+                if (Files.exists(entry) && Files.readString(entry).startsWith(v + " "))
+                {
+                    moved.add(hex);
+                }
+            }
+        }
+        PrimitiveIterator.OfInt retained = repo.index().descending();
+        while (!moved.isEmpty() && retained.hasNext())
+        {
+            int v = retained.nextInt();
+            for (Map.Entry<String, byte[]> file : repo.manifest(v).files().entrySet())
+            {
+                if (moved.remove(HashPipeline.hex(file.getValue())))
+                {
+                    Files.writeString(directory.resolve(HashPipeline.hex(file.getValue())), v + " " + file.getKey());
+                }
+            }
+        }
+        for (String hex : moved)
+        {
+            Files.deleteIfExists(directory.resolve(hex));
+        }
+    }
+
+    private void build() throws IOException
+    {
+        if (Files.isDirectory(directory))
+        {
+            return;
+        }
+        Path tmp = directory.resolveSibling("blobs.tmp");
+        if (Files.exists(tmp))
+        {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(tmp))
+            {
+                for (Path path : stream)
+                {
+                    Files.delete(path);
+                }
+            }
+        }
+        Files.createDirectories(tmp);
+        PrimitiveIterator.OfInt versions = repo.index().descending();
+        while (versions.hasNext())
+        {
+            int v = versions.nextInt();
+            add(tmp, v, repo.manifest(v));
+        }
+        Files.move(tmp, directory, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void add(Path directory, int version, Manifest manifest) throws IOException
+    {
+        for (Map.Entry<String, byte[]> file : manifest.files().entrySet())
+        {
+            Path entry = directory.resolve(HashPipeline.hex(file.getValue()));
+            if (!Files.exists(entry))
+            {
+                Files.writeString(entry, version + " " + file.getKey());
+            }
+        }
+    }
+}
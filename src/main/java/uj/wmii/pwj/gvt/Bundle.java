@@ -0,0 +1,355 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Single-file, streamable transfer format for the versions after a given one ({@code from}):
+ * <pre>
+ * "GVTBNDL2"
+ * int from, int last
+ * 32-byte chain value of version from                   see {@link HistoryChain}; the receiver's must be the same
+ * int n, n * (UTF name, 32-byte digest)                 files of version from, which the receiver must already have
+ * int n, n * (32-byte digest, long length, content)     each blob not present in version from, once
+ * int n, n * (int version, 32-byte chain value,         versions after from that were not pruned
+ *             int length, UTF-8 message,
+ *             int files, files * (UTF name, 32-byte digest))
+ * </pre>
+ * Version 0 is the same in every repository, so a bundle from 0 holds the whole history. Chain values are carried
+ * over rather than recomputed, as the versions a sender pruned are not in the bundle.
+ * When the receiver is known, blobs it already stores in any version are left out too.
+ * Blob contents are written with {@link FileChannel#transferTo}, so they are not copied through the heap.
+ */
+class Bundle {
+
+    private static final byte[] MAGIC = "GVTBNDL2".getBytes(StandardCharsets.US_ASCII);
+    private static final int DIGEST_LENGTH = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Bundle()
+    {
+    }
+
+    static BundleInfo export(GvtRepository repo, int from, WritableByteChannel out) throws IOException
+    {
+        return export(repo, from, null, out);
+    }
+
+    /**
+     * @param receiver contents stored by the repository the bundle is for, or null if it is not known
+     */
+    static BundleInfo export(GvtRepository repo, int from, BlobIndex receiver, WritableByteChannel out) throws IOException
+    {
+        VersionIndex index = repo.index();
+        int last = index.lastVersion();
+        if (!index.contains(from))
+        {
+            throw new BundleException("Invalid version number: " + from);
+        }
+
+        Manifest base = repo.manifest(from);
+        Set<String> known = new HashSet<>();
+        for (byte[] digest : base.files().values())
+        {
+            known.add(HashPipeline.hex(digest));
+        }
+
+        SortedMap<Integer, Manifest> included = new TreeMap<>();
+        Map<String, Path> blobs = new LinkedHashMap<>();
+        for (int v = from + 1; v <= last; v++)
+        {
+            if (index.isPruned(v))
+            {
+                continue;
+            }
+            Manifest manifest = repo.manifest(v);
+            included.put(v, manifest);
+            for (Map.Entry<String, byte[]> file : manifest.files().entrySet())
+            {
+                String hex = HashPipeline.hex(file.getValue());
+                if (known.contains(hex) || blobs.containsKey(hex))
+                {
+                    continue;
+                }
+                if (receiver != null && receiver.find(hex) != null)
+                {
+                    known.add(hex);
+                }
+                else
+                {
+                    blobs.put(hex, repo.versionPath(v).resolve(file.getKey()));
+                }
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), BUFFER_SIZE));
+        data.write(MAGIC);
+        data.writeInt(from);
+        data.writeInt(last);
+        data.write(repo.chain().get(from));
+        writeFiles(data, base);
+
+        long blobBytes = 0;
+        data.writeInt(blobs.size());
+        for (Map.Entry<String, Path> blob : blobs.entrySet())
+        {
+            long length = Files.size(blob.getValue());
+            data.write(HexFormat.of().parseHex(blob.getKey()));
+            data.writeLong(length);
+            data.flush();
+            transfer(blob.getValue(), length, out);
+            blobBytes += length;
+        }
+
+        data.writeInt(included.size());
+        for (Map.Entry<Integer, Manifest> version : included.entrySet())
+        {
+            byte[] message = Files.readAllBytes(repo.versionPath(version.getKey()).resolve("description.txt"));
+            data.writeInt(version.getKey());
+            data.write(repo.chain().get(version.getKey()));
+            data.writeInt(message.length);
+            data.write(message);
+            writeFiles(data, version.getValue());
+        }
+        data.flush();
+
+        return new BundleInfo(from, last, included.size(), blobs.size(), blobBytes);
+    }
+
+    /**
+     * Adds the versions of a bundle to the repository. Its last version must be the bundle's {@code from}.
+     * New versions become visible all at once, when {@code last} is moved at the end; if the import fails,
+     * everything written for them is removed again. Every blob is checked against its digest; contents the bundle
+     * leaves out are copied from wherever the repository stores them.
+     */
+    static BundleInfo importInto(GvtRepository repo, ReadableByteChannel in) throws IOException
+    {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in), BUFFER_SIZE));
+        Path staging = repo.catalog().resolve("incoming");
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            data.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+            {
+                throw new BundleException("Not a gvt bundle.");
+            }
+            int from = data.readInt();
+            int last = data.readInt();
+            if (from < 0 || last < from)
+            {
+                throw new BundleException("Malformed bundle header.");
+            }
+
+            VersionIndex index = repo.index();
+            int current = index.lastVersion();
+            if (current != from)
+            {
+                throw new BundleException("Bundle continues version " + from + ", but the last version is " + current + ".");
+            }
+            byte[] chain = readDigest(data);
+            Manifest base = readFiles(data);
+            if (!Arrays.equals(chain, repo.chain().get(from)) || !base.equals(repo.manifest(from)))
+            {
+                throw new BundleException("Version " + from + " of the bundle differs from this repository.");
+            }
+
+            Map<String, Path> sources = new HashMap<>();
+            for (Map.Entry<String, byte[]> file : base.files().entrySet())
+            {
+                sources.put(HashPipeline.hex(file.getValue()), repo.versionPath(from).resolve(file.getKey()));
+            }
+
+            deleteDirectory(staging);
+            Files.createDirectories(staging);
+            int blobCount = data.readInt();
+            long blobBytes = 0;
+            for (int i = 0; i < blobCount; i++)
+            {
+                byte[] digest = readDigest(data);
+                String hex = HashPipeline.hex(digest);
+                long length = data.readLong();
+                Path staged = staging.resolve(hex);
+                if (!Arrays.equals(copy(data, length, staged), digest))
+                {
+                    throw new BundleException("Malformed bundle: content of blob " + hex + " does not match its checksum.");
+                }
+                sources.put(hex, staged);
+                blobBytes += length;
+            }
+
+            // versions above the current last are not visible yet; if anything fails, none of them may stay behind
+            long logEnd = repo.logEnd();
+            int previous = from;
+            SortedMap<Integer, Manifest> imported = new TreeMap<>();
+            try {
+                int versionCount = data.readInt();
+                for (int i = 0; i < versionCount; i++)
+                {
+                    int version = data.readInt();
+                    if (version <= previous || version > last)
+                    {
+                        throw new BundleException("Malformed bundle: unexpected version " + version + ".");
+                    }
+                    byte[] value = readDigest(data);
+                    byte[] message = new byte[data.readInt()];
+                    data.readFully(message);
+                    Manifest manifest = readFiles(data);
+
+                    previous = version;
+                    repo.deleteVersion(version);
+                    Path versionPath = repo.versionPath(version);
+                    Files.createDirectories(versionPath);
+                    for (Map.Entry<String, byte[]> file : manifest.files().entrySet())
+                    {
+                        String hex = HashPipeline.hex(file.getValue());
+                        Path source = sources.get(hex);
+                        if (source == null)
+                        {
+                            source = repo.blobs().find(hex);
+                        }
+                        if (source == null)
+                        {
+                            throw new BundleException("Malformed bundle: missing content of " + file.getKey() + " in version " + version + ".");
+                        }
+                        Files.copy(source, versionPath.resolve(file.getKey()));
+                    }
+                    repo.store(version, new String(message, StandardCharsets.UTF_8), manifest, value);
+                    imported.put(version, manifest);
+                }
+
+                int[] pruned = new int[last - from - imported.size()];
+                for (int v = from + 1, i = 0; v <= last; v++)
+                {
+                    if (!imported.containsKey(v))
+                    {
+                        pruned[i++] = v;
+                    }
+                }
+                if (pruned.length > 0)
+                {
+                    index.markPruned(pruned);
+                }
+                index.setLast(last);
+            } catch (Throwable e) {
+                try {
+                    repo.discardAbove(from, previous, logEnd);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            try {
+                for (Map.Entry<Integer, Manifest> version : imported.entrySet())
+                {
+                    repo.blobs().added(version.getKey(), version.getValue());
+                }
+            } catch (IOException e) {
+                // the versions are already published; content missing from the index is only sent again
+            }
+            return new BundleInfo(from, last, imported.size(), blobCount, blobBytes);
+        } catch (EOFException e) {
+            throw new BundleException("Truncated bundle.");
+        } finally {
+            deleteDirectory(staging);
+        }
+    }
+
+    private static void writeFiles(DataOutputStream data, Manifest manifest) throws IOException
+    {
+        data.writeInt(manifest.files().size());
+        for (Map.Entry<String, byte[]> file : manifest.files().entrySet())
+        {
+            data.writeUTF(file.getKey());
+            data.write(file.getValue());
+        }
+    }
+
+    private static Manifest readFiles(DataInputStream data) throws IOException
+    {
+        int count = data.readInt();
+        Map<String, byte[]> files = new HashMap<>();
+        for (int i = 0; i < count; i++)
+        {
+            String name = data.readUTF();
+            if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.equals("..") || name.equals(".")
+                    || name.equals("description.txt"))
+            {
+                throw new BundleException("Malformed bundle: invalid file name " + name + ".");
+            }
+            files.put(name, readDigest(data));
+        }
+        return Manifest.of(files);
+    }
+
+    private static byte[] readDigest(DataInputStream data) throws IOException
+    {
+        byte[] digest = new byte[DIGEST_LENGTH];
+        data.readFully(digest);
+        return digest;
+    }
+
+    private static void transfer(Path blob, long length, WritableByteChannel out) throws IOException
+    {
+        try (FileChannel source = FileChannel.open(blob, StandardOpenOption.READ))
+        {
+            long position = 0;
+            while (position < length)
+            {
+                long transferred = source.transferTo(position, length - position, out);
+                if (transferred <= 0 && position >= source.size())
+                {
+                    throw new IOException("Stored file changed during export: " + blob);
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    /**
+     * @return SHA-256 digest of the copied content
+     */
+    private static byte[] copy(DataInputStream data, long length, Path target) throws IOException
+    {
+        MessageDigest digest = HashPipeline.newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (OutputStream output = Files.newOutputStream(target))
+        {
+            long remaining = length;
+            while (remaining > 0)
+            {
+                int read = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0)
+                {
+                    throw new EOFException();
+                }
+                output.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        return digest.digest();
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException
+    {
+        if (!Files.exists(directory))
+        {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory))
+        {
+            for (Path path : stream)
+            {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+}
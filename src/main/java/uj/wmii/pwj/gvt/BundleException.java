@@ -0,0 +1,16 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a bundle is malformed or does not continue the repository it is imported into.
+ */
+public class BundleException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public BundleException(String message)
+    {
+        super(message);
+    }
+}
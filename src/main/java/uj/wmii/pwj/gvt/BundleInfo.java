@@ -0,0 +1,7 @@
+package uj.wmii.pwj.gvt;
+
+/**
+ * Summary of an exported or imported bundle: it holds the versions after {@code from} up to {@code last}.
+ */
+public record BundleInfo(int from, int last, int versions, int blobs, long blobBytes) {
+}
@@ -0,0 +1,256 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Append-only log of version messages ({@code .gvt/log}), made to be read from the end.
+ * Each record is:
+ * <pre>
+ * {version} {message-length}\n
+ * {message}\n
+ * {record-offset}\n
+ * </pre>
+ * The trailing line lets a reader find the start of the record by scanning one short line backwards,
+ * so reading the newest n records costs O(n) regardless of log size. Only first lines of messages are decoded.
+ */
+class CommitLog {
+
+    private static final int SCAN_CHUNK = 64;
+    private static final int LINE_CHUNK = 256;
+
+    private final Path log;
+
+    CommitLog(Path catalog)
+    {
+        log = catalog.resolve("log");
+    }
+
+    boolean exists()
+    {
+        return Files.exists(log);
+    }
+
+    void append(int version, String message) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+        {
+            write(channel, version, message);
+        }
+    }
+
+    /**
+     * Drops the records appended after {@code end}, a position returned by {@link #end()} earlier.
+     */
+    void truncate(long end) throws IOException
+    {
+        if (!exists())
+        {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE))
+        {
+            channel.truncate(end);
+        }
+    }
+
+    /**
+     * Atomically replaces the whole log with records of the given versions.
+     */
+    void rewrite(SortedMap<Integer, String> messages) throws IOException
+    {
+        Path tmp = log.resolveSibling("log.tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            for (Map.Entry<Integer, String> entry : messages.entrySet())
+            {
+                write(channel, entry.getKey(), entry.getValue());
+            }
+        }
+        Files.move(tmp, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write(FileChannel channel, int version, String message) throws IOException
+    {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        long start = channel.size();
+        ByteArrayOutputStream record = new ByteArrayOutputStream(body.length + 32);
+        record.write((version + " " + body.length + "\n").getBytes(StandardCharsets.US_ASCII));
+        record.write(body);
+        record.write(("\n" + start + "\n").getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer buffer = ByteBuffer.wrap(record.toByteArray());
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Position just past the last record; reading starts here.
+     */
+    long end() throws IOException
+    {
+        return exists() ? Files.size(log) : 0;
+    }
+
+    /**
+     * Reads at most {@code max} records ending at {@code end}, newest first.
+     * The channel is opened only for the duration of the batch.
+     */
+    Batch readBefore(long end, int max) throws IOException
+    {
+        List<HistoryEntry> entries = new ArrayList<>();
+        if (end <= 0)
+        {
+            return new Batch(entries, 0);
+        }
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ))
+        {
+            while (end > 0 && entries.size() < max)
+            {
+                long start = parseLong(lineBefore(channel, end));
+                if (start < 0 || start >= end)
+                {
+                    throw corrupted(end);
+                }
+                String header = readLine(channel, start, end - start);
+                int separator = header.indexOf(' ');
+                if (separator < 0)
+                {
+                    throw corrupted(end);
+                }
+                int version = (int) parseLong(header.substring(0, separator));
+                long length = parseLong(header.substring(separator + 1));
+                long messageStart = start + header.length() + 1;
+                String message = readLine(channel, messageStart, length);
+                if (message.endsWith("\r"))
+                {
+                    message = message.substring(0, message.length() - 1);
+                }
+                entries.add(new HistoryEntry(version, message));
+                end = start;
+            }
+        }
+        return new Batch(entries, end);
+    }
+
+    /**
+     * Reads every record, from the end.
+     *
+     * @return number of records
+     * @throws IOException if the log is corrupted
+     */
+    int verify() throws IOException
+    {
+        int records = 0;
+        long end = end();
+        while (end > 0)
+        {
+            Batch batch = readBefore(end, 1024);
+            records += batch.entries().size();
+            end = batch.end();
+        }
+        return records;
+    }
+
+    record Batch(List<HistoryEntry> entries, long end) {
+    }
+
+    /**
+     * Reverse line scanner: returns the line terminated by the newline at {@code end - 1}.
+     */
+    private static String lineBefore(FileChannel channel, long end) throws IOException
+    {
+        ByteArrayOutputStream reversed = new ByteArrayOutputStream(SCAN_CHUNK);
+        long position = end - 1;
+        ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK);
+        while (position > 0)
+        {
+            long from = Math.max(0, position - SCAN_CHUNK);
+            chunk.clear().limit((int) (position - from));
+            readFully(channel, chunk, from);
+            for (int i = chunk.limit() - 1; i >= 0; i--)
+            {
+                byte b = chunk.get(i);
+                if (b == '\n')
+                {
+                    return reverse(reversed);
+                }
+                reversed.write(b);
+            }
+            position = from;
+        }
+        return reverse(reversed);
+    }
+
+    /**
+     * Reads from {@code position} up to the first newline, looking at no more than {@code limit} bytes.
+     */
+    private static String readLine(FileChannel channel, long position, long limit) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(LINE_CHUNK);
+        ByteBuffer chunk = ByteBuffer.allocate(LINE_CHUNK);
+        long read = 0;
+        while (read < limit)
+        {
+            chunk.clear().limit((int) Math.min(LINE_CHUNK, limit - read));
+            readFully(channel, chunk, position + read);
+            for (int i = 0; i < chunk.limit(); i++)
+            {
+                if (chunk.get(i) == '\n')
+                {
+                    line.write(chunk.array(), 0, i);
+                    return line.toString(StandardCharsets.UTF_8);
+                }
+            }
+            line.write(chunk.array(), 0, chunk.limit());
+            read += chunk.limit();
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new IOException("Unexpected end of commit log");
+            }
+        }
+    }
+
+    private static String reverse(ByteArrayOutputStream reversed)
+    {
+        byte[] bytes = reversed.toByteArray();
+        for (int i = 0, j = bytes.length - 1; i < j; i++, j--)
+        {
+            byte b = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = b;
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static long parseLong(String value) throws IOException
+    {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupted commit log: " + value, e);
+        }
+    }
+
+    private IOException corrupted(long end)
+    {
+        return new IOException("Corrupted commit log " + log + " before offset " + end);
+    }
+}
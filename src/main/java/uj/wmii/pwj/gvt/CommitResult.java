@@ -0,0 +1,20 @@
+package uj.wmii.pwj.gvt;
+
+/**
+ * Outcome of {@link GvtRepository#add}, {@link GvtRepository#detach} and {@link GvtRepository#commit}.
+ * {@code version} is the number of the created version, or {@code -1} if none was created.
+ */
+public record CommitResult(Status status, String file, int version) {
+
+    public enum Status {
+        CREATED,
+        ALREADY_ADDED,
+        NOT_ADDED,
+        FILE_NOT_FOUND
+    }
+
+    public boolean created()
+    {
+        return status == Status.CREATED;
+    }
+}
@@ -0,0 +1,240 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Names of working files that may differ from the last version, kept in {@code .gvt/dirty} by a {@link Watcher}
+ * as the number of that version followed by one name per line. It is only trusted while a watcher holds the lock
+ * on {@code .gvt/watch.lock} and only for the version it names; it may contain files that turned out unchanged,
+ * so readers still compare the candidates. Updates take a file lock, so the watcher and commands run by
+ * other processes can change it concurrently.
+ */
+class DirtySet {
+
+    private static final Object JVM_LOCK = new Object();
+
+    /**
+     * Lock files held by watchers of this JVM. Closing any channel on a file drops the locks this process holds
+     * on it, so a held lock file is never opened again; this also serializes probing and acquiring the lock.
+     */
+    private static final Set<Path> WATCHED = new HashSet<>();
+
+    private final Path root;
+    private final Path file;
+    private final Path watchLock;
+
+    DirtySet(Path root, Path catalog)
+    {
+        this.root = root;
+        file = catalog.resolve("dirty");
+        watchLock = catalog.resolve("watch.lock");
+    }
+
+    /**
+     * Whether a watcher, in this or another process, is keeping the set up to date.
+     */
+    boolean isWatched() throws IOException
+    {
+        synchronized (WATCHED)
+        {
+            if (!Files.exists(watchLock))
+            {
+                return false;
+            }
+            if (WATCHED.contains(watchLock.toRealPath()))
+            {
+                return true;
+            }
+            try (FileChannel channel = FileChannel.open(watchLock, StandardOpenOption.WRITE))
+            {
+                FileLock lock = channel.tryLock();
+                if (lock == null)
+                {
+                    return true;
+                }
+                lock.release();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Takes the watch lock for a {@link Watcher}; it is held until {@link #unlockWatch(FileLock)}.
+     *
+     * @return the lock, or null if the directory is already watched
+     */
+    FileLock lockWatch() throws IOException
+    {
+        synchronized (WATCHED)
+        {
+            if (Files.exists(watchLock) && WATCHED.contains(watchLock.toRealPath()))
+            {
+                return null;
+            }
+            FileChannel channel = FileChannel.open(watchLock, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            if (lock == null)
+            {
+                channel.close();
+                return null;
+            }
+            WATCHED.add(watchLock.toRealPath());
+            return lock;
+        }
+    }
+
+    void unlockWatch(FileLock lock) throws IOException
+    {
+        synchronized (WATCHED)
+        {
+            WATCHED.remove(watchLock.toRealPath());
+            lock.release();
+            lock.channel().close();
+        }
+    }
+
+    /**
+     * @return the dirty files, or empty if the set does not exist or was kept for another last version
+     */
+    Optional<Set<String>> read(int lastVersion) throws IOException
+    {
+        Set<String> names = new TreeSet<>();
+        int[] base = {-1};
+        update(state -> {
+            base[0] = state.base;
+            names.addAll(state.names);
+        }, false);
+        return base[0] == lastVersion ? Optional.of(names) : Optional.empty();
+    }
+
+    void add(Collection<String> names) throws IOException
+    {
+        if (!names.isEmpty())
+        {
+            update(state -> state.names.addAll(names), true);
+        }
+    }
+
+    /**
+     * Starts the set over for the given last version.
+     */
+    void replace(int lastVersion, Collection<String> names) throws IOException
+    {
+        update(state -> {
+            state.base = lastVersion;
+            state.names.clear();
+            state.names.addAll(names);
+        }, true);
+    }
+
+    /**
+     * Moves the set to the given last version, keeping the files collected so far, which only adds candidates.
+     */
+    void rebase(int lastVersion, Collection<String> names) throws IOException
+    {
+        update(state -> {
+            state.base = lastVersion;
+            state.names.addAll(names);
+        }, true);
+    }
+
+    /**
+     * Records that {@code version} was created from the previous last version by storing the given files
+     * with the given digests, or detaching those mapped to null, so the rest of the set stays valid.
+     * A stored file leaves the set only if its working copy still has the stored content; it is hashed while
+     * the set is locked, so an edit the watcher reports after the copy was taken is not lost.
+     */
+    void committed(int version, Map<String, byte[]> stored) throws IOException
+    {
+        if (Files.exists(file))
+        {
+            update(state -> {
+                if (state.base == version - 1)
+                {
+                    state.base = version;
+                    for (Map.Entry<String, byte[]> entry : stored.entrySet())
+                    {
+                        Path working = root.resolve(entry.getKey());
+                        if (entry.getValue() == null
+                                || Files.isRegularFile(working) && Arrays.equals(HashPipeline.hashFile(working), entry.getValue()))
+                        {
+                            state.names.remove(entry.getKey());
+                        }
+                    }
+                }
+            }, true);
+        }
+    }
+
+    private static class State {
+        int base = -1;
+        final Set<String> names = new TreeSet<>();
+    }
+
+    private interface Change {
+        void apply(State state) throws IOException;
+    }
+
+    private void update(Change change, boolean write) throws IOException
+    {
+        synchronized (JVM_LOCK)
+        {
+            if (!write && !Files.exists(file))
+            {
+                change.apply(new State());
+                return;
+            }
+            // closing the channel releases the lock
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                channel.lock(0, Long.MAX_VALUE, !write);
+                ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+                while (content.hasRemaining() && channel.read(content, content.position()) >= 0)
+                {
+                }
+                State state = new State();
+                String[] lines = new String(content.array(), StandardCharsets.UTF_8).split("\n");
+                try {
+                    state.base = Integer.parseInt(lines[0]);
+                    for (int i = 1; i < lines.length; i++)
+                    {
+                        if (!lines[i].isEmpty())
+                        {
+                            state.names.add(lines[i]);
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    // damaged or empty: not valid for any version
+                    state.base = -1;
+                }
+                change.apply(state);
+                if (write)
+                {
+                    StringBuilder updated = new StringBuilder().append(state.base).append('\n');
+                    for (String name : state.names)
+                    {
+                        updated.append(name).append('\n');
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(updated.toString().getBytes(StandardCharsets.UTF_8));
+                    channel.truncate(0);
+                    while (buffer.hasRemaining())
+                    {
+                        channel.write(buffer, buffer.position());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package uj.wmii.pwj.gvt;
+
+/**
+ * A tracked file whose working copy differs from the last version.
+ */
+public record FileStatus(String file, Change change) {
+
+    public enum Change {
+        MODIFIED,
+        DELETED
+    }
+}
@@ -0,0 +1,439 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Consistency check of the version store. Structure ({@code last}, {@code active}, version directories,
+ * descriptions, manifests, pruned bitmap, commit log) is checked while stored contents are verified
+ * against their manifests by a {@link HashPipeline}, so hashing runs on all cores during the walk.
+ * With repair enabled, state left behind by interrupted operations is cleaned up; damaged contents are only reported.
+ */
+class Fsck {
+
+    private static final String DESCRIPTION = "description.txt";
+
+    private final GvtRepository repo;
+    private final VersionIndex index;
+    private final boolean repair;
+    private final PrintStream progress;
+    private final List<Finding> findings = Collections.synchronizedList(new ArrayList<>());
+    private final Map<Path, byte[]> expected = new ConcurrentHashMap<>();
+
+    Fsck(GvtRepository repo, boolean repair, PrintStream progress)
+    {
+        this.repo = repo;
+        this.index = repo.index();
+        this.repair = repair;
+        this.progress = progress;
+    }
+
+    FsckReport run() throws IOException
+    {
+        long started = System.nanoTime();
+        Path catalog = repo.catalog();
+        Path versions = catalog.resolve("versions");
+
+        if (Files.isDirectory(catalog.resolve("prune")))
+        {
+            Finding interrupted = problem("Prune was interrupted.");
+            if (repair)
+            {
+                repo.recoverPrune();
+                interrupted.repaired("Interrupted prune completed or discarded.");
+            }
+        }
+
+        TreeSet<Integer> stored = new TreeSet<>();
+        List<Path> foreign = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(versions))
+        {
+            for (Path path : stream)
+            {
+                int version = versionNumber(path.getFileName().toString());
+                if (version >= 0 && Files.isDirectory(path))
+                {
+                    stored.add(version);
+                }
+                else
+                {
+                    foreign.add(path);
+                }
+            }
+        }
+
+        int last = checkLast(stored);
+        if (last < 0)
+        {
+            return report(0, 0, 0, started);
+        }
+
+        int[] checked = new int[1];
+        HashPipeline hasher = new HashPipeline();
+        ScheduledExecutorService reporter = startProgress(hasher, started);
+        try {
+            Stream<Path> contents = IntStream.rangeClosed(0, last).boxed().flatMap(v -> {
+                try {
+                    List<Path> files = checkVersion(v, stored);
+                    if (files != null)
+                    {
+                        checked[0]++;
+                    }
+                    return files == null ? Stream.empty() : files.stream();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            hasher.hashEach(contents, this::verify);
+        } finally {
+            if (reporter != null)
+            {
+                reporter.shutdownNow();
+            }
+            hasher.close();
+        }
+
+        for (int version : stored.tailSet(last, false))
+        {
+            Finding leftover = problem("Version directory " + version + " is not part of history (interrupted write).");
+            if (repair)
+            {
+                repo.deleteVersion(version);
+                leftover.repaired("Removed version directory " + version + ".");
+            }
+        }
+        for (Path path : foreign)
+        {
+            Finding unexpected = problem("Unexpected entry in versions: " + path.getFileName());
+            if (repair)
+            {
+                deleteRecursively(path);
+                unexpected.repaired("Removed versions/" + path.getFileName() + ".");
+            }
+        }
+        checkManifests(catalog.resolve("manifests"), last);
+        checkPruned(last);
+        checkActive(catalog.resolve("active"), last);
+        checkLog(last);
+        checkLeftovers(catalog);
+
+        return report(checked[0], hasher.hashedFiles(), hasher.hashedBytes(), started);
+    }
+
+    /**
+     * @return the last version after repair, the highest complete version if {@code last} is damaged, or -1 if there is none
+     */
+    private int checkLast(TreeSet<Integer> stored) throws IOException
+    {
+        int last = -1;
+        try {
+            last = index.lastVersion();
+        } catch (NumberFormatException | NoSuchFileException ignored) {
+
+        }
+        if (last >= 0 && complete(last))
+        {
+            return last;
+        }
+        Finding damaged = problem(last < 0 ? "File last is missing or damaged." : "Last version " + last + " is missing or incomplete.");
+
+        int candidate = -1;
+        for (int version : stored.descendingSet())
+        {
+            if ((last < 0 || version < last) && complete(version) && !index.isPruned(version))
+            {
+                candidate = version;
+                break;
+            }
+        }
+        if (candidate < 0)
+        {
+            problem("No complete version found.");
+            return -1;
+        }
+        if (repair)
+        {
+            index.setLast(candidate);
+            damaged.repaired("Last version set to " + candidate + ".");
+        }
+        return candidate;
+    }
+
+    /**
+     * Checks the structure of one version.
+     *
+     * @return stored files to verify against the manifest, or null if the version is not stored
+     */
+    private List<Path> checkVersion(int version, Set<Integer> stored) throws IOException
+    {
+        if (index.isPruned(version))
+        {
+            if (stored.contains(version))
+            {
+                Finding stale = problem("Version " + version + " is pruned but still stored.");
+                if (repair)
+                {
+                    repo.deleteVersion(version);
+                    stale.repaired("Removed pruned version " + version + ".");
+                }
+            }
+            return null;
+        }
+        if (!stored.contains(version))
+        {
+            Finding missing = problem("Version " + version + " is missing.");
+            if (repair && version > 0)
+            {
+                index.markPruned(version);
+                missing.repaired("Version " + version + " marked as pruned.");
+            }
+            return null;
+        }
+
+        Path versionPath = repo.versionPath(version);
+        if (!Files.isRegularFile(versionPath.resolve(DESCRIPTION)))
+        {
+            problem("Version " + version + " has no " + DESCRIPTION + ".");
+        }
+        Path manifestPath = repo.catalog().resolve("manifests").resolve(String.valueOf(version));
+        if (!Files.exists(manifestPath))
+        {
+            return List.of();
+        }
+        Manifest manifest;
+        try {
+            manifest = Manifest.read(manifestPath);
+        } catch (IOException e) {
+            problem("Manifest of version " + version + " is damaged: " + e.getMessage());
+            return List.of();
+        }
+
+        List<Path> files = new ArrayList<>();
+        Set<String> listed = new HashSet<>(repo.trackedFiles(versionPath));
+        for (Map.Entry<String, byte[]> entry : manifest.files().entrySet())
+        {
+            if (!listed.remove(entry.getKey()))
+            {
+                problem("Version " + version + " is missing file " + entry.getKey() + ".");
+                continue;
+            }
+            Path file = versionPath.resolve(entry.getKey());
+            expected.put(file, entry.getValue());
+            files.add(file);
+        }
+        for (String name : listed)
+        {
+            problem("Version " + version + " has file " + name + " not listed in its manifest.");
+        }
+        return files;
+    }
+
+    private void verify(Path file, byte[] digest, IOException error)
+    {
+        byte[] expectedDigest = expected.remove(file);
+        String name = file.getParent().getFileName() + "/" + file.getFileName();
+        if (error != null)
+        {
+            problem("Cannot read versions/" + name + ": " + error);
+        }
+        else if (!Arrays.equals(digest, expectedDigest))
+        {
+            problem("Content of versions/" + name + " does not match its checksum.");
+        }
+    }
+
+    private void checkManifests(Path manifests, int last) throws IOException
+    {
+        if (!Files.isDirectory(manifests))
+        {
+            return;
+        }
+        List<Path> stale = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(manifests))
+        {
+            for (Path path : stream)
+            {
+                int version = versionNumber(path.getFileName().toString());
+                if (version < 0 || version > last || index.isPruned(version))
+                {
+                    stale.add(path);
+                }
+            }
+        }
+        for (Path path : stale)
+        {
+            Finding finding = problem("Manifest " + path.getFileName() + " does not belong to any version.");
+            if (repair)
+            {
+                Files.delete(path);
+                finding.repaired("Removed manifest " + path.getFileName() + ".");
+            }
+        }
+    }
+
+    private void checkPruned(int last) throws IOException
+    {
+        if (index.prunedAbove(last))
+        {
+            Finding marked = problem("Versions above " + last + " are marked as pruned.");
+            if (repair)
+            {
+                index.clearPrunedAbove(last);
+                marked.repaired("Cleared pruned marks above " + last + ".");
+            }
+        }
+    }
+
+    private void checkActive(Path active, int last) throws IOException
+    {
+        int version = -1;
+        try {
+            version = Integer.parseInt(Files.readString(active).trim());
+        } catch (NumberFormatException | NoSuchFileException ignored) {
+
+        }
+        if (version < 0 || version > last || index.isPruned(version))
+        {
+            Finding invalid = problem("Active version is missing or invalid.");
+            if (repair)
+            {
+                Files.writeString(active, String.valueOf(last));
+                invalid.repaired("Active version set to " + last + ".");
+            }
+        }
+    }
+
+    private void checkLog(int last) throws IOException
+    {
+        CommitLog log = new CommitLog(repo.catalog());
+        Finding damaged;
+        try {
+            log.verify();
+            return;
+        } catch (IOException e) {
+            damaged = problem("Commit log is damaged: " + e.getMessage());
+        }
+        if (repair)
+        {
+            SortedMap<Integer, String> messages = new TreeMap<>();
+            for (int version = 0; version <= last; version++)
+            {
+                Path description = repo.versionPath(version).resolve(DESCRIPTION);
+                if (!index.isPruned(version) && Files.exists(description))
+                {
+                    messages.put(version, Files.readString(description));
+                }
+            }
+            log.rewrite(messages);
+            damaged.repaired("Commit log rebuilt from version descriptions.");
+        }
+    }
+
+    private void checkLeftovers(Path catalog) throws IOException
+    {
+        for (String name : List.of("last.tmp", "log.tmp", "pruned.tmp", "blame.tmp", "blobs.tmp", "incoming"))
+        {
+            Path path = catalog.resolve(name);
+            if (Files.exists(path))
+            {
+                Finding leftover = problem("Leftover of an interrupted operation: " + name);
+                if (repair)
+                {
+                    deleteRecursively(path);
+                    leftover.repaired("Removed " + name + ".");
+                }
+            }
+        }
+    }
+
+    private ScheduledExecutorService startProgress(HashPipeline hasher, long started)
+    {
+        if (progress == null)
+        {
+            return null;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gvt-fsck-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            double seconds = (System.nanoTime() - started) / 1e9;
+            double mib = hasher.hashedBytes() / (1024.0 * 1024.0);
+            progress.printf(Locale.ROOT, "Verified %d files, %.1f MiB (%.1f MiB/s)%n", hasher.hashedFiles(), mib, mib / seconds);
+        }, 1, 1, TimeUnit.SECONDS);
+        return reporter;
+    }
+
+    private boolean complete(int version)
+    {
+        return Files.isRegularFile(repo.versionPath(version).resolve(DESCRIPTION));
+    }
+
+    private static int versionNumber(String name)
+    {
+        try {
+            int version = Integer.parseInt(name);
+            return String.valueOf(version).equals(name) ? version : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException
+    {
+        try (Stream<Path> walk = Files.walk(path))
+        {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).toList())
+            {
+                Files.delete(p);
+            }
+        }
+    }
+
+    private Finding problem(String description)
+    {
+        Finding finding = new Finding(description);
+        findings.add(finding);
+        return finding;
+    }
+
+    private FsckReport report(int versions, long files, long bytes, long started)
+    {
+        List<FsckReport.Problem> problems;
+        synchronized (findings)
+        {
+            problems = findings.stream().map(f -> new FsckReport.Problem(f.description, f.repair)).toList();
+        }
+        return new FsckReport(versions, files, bytes, Duration.ofNanos(System.nanoTime() - started), problems);
+    }
+
+    /**
+     * A problem as it is found; repaired at most once, by the thread that found it.
+     */
+    private static class Finding {
+
+        private final String description;
+        private String repair;
+
+        Finding(String description)
+        {
+            this.description = description;
+        }
+
+        void repaired(String repair)
+        {
+            this.repair = repair;
+        }
+    }
+}
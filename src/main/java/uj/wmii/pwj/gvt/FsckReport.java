@@ -0,0 +1,49 @@
+package uj.wmii.pwj.gvt;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Outcome of {@link GvtRepository#fsck}: what was verified and the problems found, each with its repair, if any.
+ */
+public record FsckReport(int versions, long files, long bytes, Duration elapsed, List<Problem> findings) {
+
+    /**
+     * @param repair what was done about the problem, or null if it was left as it is
+     */
+    public record Problem(String description, String repair) {
+
+        public boolean repaired()
+        {
+            return repair != null;
+        }
+    }
+
+    public List<String> problems()
+    {
+        return findings.stream().map(Problem::description).toList();
+    }
+
+    public List<String> repaired()
+    {
+        return findings.stream().map(Problem::repair).filter(Objects::nonNull).toList();
+    }
+
+    /**
+     * Whether no problem is left unrepaired.
+     */
+    public boolean consistent()
+    {
+        return findings.stream().allMatch(Problem::repaired);
+    }
+
+    /**
+     * Content verification speed in MiB per second.
+     */
+    public double throughput()
+    {
+        double seconds = Math.max(elapsed.toNanos(), 1) / 1e9;
+        return bytes / (1024.0 * 1024.0) / seconds;
+    }
+}
@@ -2,17 +2,23 @@ package uj.wmii.pwj.gvt;
 
 import java.util.*;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
 
 public class Gvt {
 
     private final ExitHandler exitHandler;
-    private Repository repo;
+    private final GvtRepository repo;
 
     public Gvt(ExitHandler exitHandler)
+    {
+        this(exitHandler, GvtRepository.open(Path.of("")));
+    }
+
+    public Gvt(ExitHandler exitHandler, GvtRepository repo)
     {
         this.exitHandler = exitHandler;
-        repo = new Repository(exitHandler);
+        this.repo = repo;
     }
 
     public static void main(String... args)
@@ -31,7 +37,7 @@ public class Gvt {
         {
             String command = args[0];
 
-            if (!"init".equals(command) && !repo.initiated)
+            if (!"init".equals(command) && !repo.isInitialized())
             {
                 exitHandler.exit(-2, "Current directory is not initialized. Please use init command to initialize.");
             }
@@ -41,398 +47,418 @@ public class Gvt {
                     switch (command)
                     {
                         case "init":
-                            repo.init();
+                            init();
                             break;
                         case "add":
-                            repo.add(args);
+                            add(args);
                             break;
                         case "detach":
-                            repo.detach(args);
+                            detach(args);
                             break;
                         case "checkout":
-                            repo.checkout(args);
+                            checkout(args);
                             break;
                         case "commit":
-                            repo.commit(args);
+                            commit(args);
                             break;
                         case "history":
-                            repo.history(args);
+                            history(args);
                             break;
                         case "version":
-                            repo.version(args);
+                            version(args);
+                            break;
+                        case "status":
+                            status();
+                            break;
+                        case "prune":
+                            prune();
+                            break;
+                        case "bundle":
+                            bundle(args);
+                            break;
+                        case "fsck":
+                            fsck(args);
+                            break;
+                        case "watch":
+                            watch();
+                            break;
+                        case "blame":
+                            blame(args);
+                            break;
+                        case "push":
+                        case "pull":
+                            sync(args);
                             break;
                         default:
                             exitHandler.exit(1, "Unknown command " + command + ".");
                             break;
                     }
-                } catch (IOException e) {
+                } catch (IOException | UncheckedIOException e) {
                     e.printStackTrace(System.err);
                     exitHandler.exit(-3, "Underlying system problem. See ERR for details.");
                 }
             }
         }
     }
-}
 
-class Repository {
-    public Path catalog;
-    public Path versions;
-    public Path active;
-    public Path last;
-    public boolean initiated;
-    public ExitHandler exitHandler;
+    private static String message(String... args)
+    {
+        return (args.length > 3 && args[2].equals("-m")) ? args[3] : null;
+    }
+
+    private void init() throws IOException
+    {
+        if (repo.init())
+        {
+            exitHandler.exit(0, "Current directory initialized successfully.");
+        }
+        else
+        {
+            exitHandler.exit(10, "Current directory is already initialized.");
+        }
+    }
 
-    public Repository(ExitHandler exitHandler)
+    private void add(String... args)
     {
-        catalog = Path.of(".gvt");
-        versions = catalog.resolve("versions");
-        active = catalog.resolve("active");
-        last = catalog.resolve("last");
-        this.exitHandler = exitHandler;
+        if (args.length < 2)
+        {
+            exitHandler.exit(20, "Please specify file to add.");
+            return;
+        }
+        String file = args[1];
         try {
-            if (Files.exists(catalog) && Files.isDirectory(catalog) && Files.exists(last)) {
-                initiated = true;
-            } else {
-                initiated = false;
+            CommitResult result = repo.add(file, message(args));
+            switch (result.status())
+            {
+                case FILE_NOT_FOUND:
+                    exitHandler.exit(21, "File not found. File: " + file);
+                    break;
+                case ALREADY_ADDED:
+                    exitHandler.exit(0, "File already added. File: " + file);
+                    break;
+                default:
+                    exitHandler.exit(0, "File added successfully. File: " + file);
+                    break;
             }
-        } catch (Exception e) {
-            initiated = false;
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            exitHandler.exit(22, "File cannot be added. See ERR for details. File: " + file);
         }
     }
 
-    public void init() throws IOException
+    private void detach(String... args)
     {
+        if (args.length < 2)
+        {
+            exitHandler.exit(30, "Please specify file to detach.");
+            return;
+        }
+        String file = args[1];
         try {
-            if (Files.exists(catalog))
+            CommitResult result = repo.detach(file, message(args));
+            if (result.created())
             {
-                exitHandler.exit(10, "Current directory is already initialized.");
+                exitHandler.exit(0, "File detached successfully. File: " + file);
             }
             else
             {
-                Files.createDirectories(catalog);
-                Files.createDirectories(versions.resolve("0"));
-
-                Files.writeString(versions.resolve("0").resolve("description.txt"), "GVT initialized.");
-                Files.writeString(active, "0");
-                Files.writeString(last, "0");
-
-                initiated = true;
-
-                exitHandler.exit(0, "Current directory initialized successfully.");
+                exitHandler.exit(0, "File is not added to gvt. File: " + file);
             }
         } catch (IOException e) {
             e.printStackTrace(System.err);
-            exitHandler.exit(-3, "Underlying system problem. See ERR for details.");
+            exitHandler.exit(31, "File cannot be detached, see ERR for details. File: " + file);
         }
     }
 
-    public void add(String... args)
+    private void commit(String... args)
     {
         if (args.length < 2)
         {
-            exitHandler.exit(20, "Please specify file to add.");
+            exitHandler.exit(50, "Please specify file to commit.");
+            return;
         }
-        else
+        String file = args[1];
+        if ("-all".equals(file))
         {
-            String file = args[1];
-            Path filePath = Path.of(file);
-            if (!Files.exists(filePath))
+            commitModified(args);
+            return;
+        }
+        try {
+            CommitResult result = repo.commit(file, message(args));
+            switch (result.status())
             {
-                exitHandler.exit(21, "File not found. File: " + file);
+                case FILE_NOT_FOUND:
+                    exitHandler.exit(51, "File not found. File: " + file);
+                    break;
+                case NOT_ADDED:
+                    exitHandler.exit(0, "File is not added to gvt. File: " + file);
+                    break;
+                default:
+                    exitHandler.exit(0, "File committed successfully. File: " + file);
+                    break;
             }
-            else
-            {
-                try {
-                    int lastVersion = Integer.parseInt(Files.readString(last).trim());
-
-                    Path lastFilePath = versions.resolve(String.valueOf(lastVersion)).resolve(filePath.getFileName().toString());
-                    if (Files.exists(lastFilePath))
-                    {
-                        exitHandler.exit(0, "File already added. File: " + file);
-                    }
-                    else
-                    {
-                        int newVersion = lastVersion + 1;
-                        copyFiles(lastVersion, newVersion);
-
-                        Path newCatalog = versions.resolve(String.valueOf(newVersion));
-                        Files.createDirectories(newCatalog);
-
-                        Files.copy(filePath, newCatalog.resolve(filePath.getFileName().toString()));
-
-                        Files.writeString(last, String.valueOf(newVersion));
-
-                        String message = (args.length > 2 && args[2].equals("-m")) ? args[3] : "File added successfully. File: " + file;
-                        Files.writeString(versions.resolve(String.valueOf(newVersion)).resolve("description.txt"), message);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            exitHandler.exit(52, "File cannot be committed, see ERR for details. File: " + file);
+        }
+    }
 
-                        exitHandler.exit(0, "File added successfully. File: " + file);
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace(System.err);
-                    exitHandler.exit(22, "File cannot be added. See ERR for details. File: " + file);
-                }
+    private void commitModified(String... args)
+    {
+        try {
+            List<CommitResult> results = repo.commitModified(message(args));
+            if (results.isEmpty())
+            {
+                exitHandler.exit(0, "No modified files to commit.");
+                return;
             }
+            StringJoiner files = new StringJoiner(", ");
+            for (CommitResult result : results)
+            {
+                files.add(result.file());
+            }
+            exitHandler.exit(0, "Files committed successfully. Files: " + files);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            exitHandler.exit(52, "Files cannot be committed, see ERR for details.");
         }
     }
 
-    public void detach(String... args)
+    private void checkout(String... args) throws IOException
     {
         if (args.length < 2)
         {
-            exitHandler.exit(30, "Please specify file to detach.");
+            exitHandler.exit(60, "Invalid version number: ");
+            return;
+        }
+        int versionNumber;
+        try {
+            versionNumber = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            exitHandler.exit(60, "Invalid version number: " + args[1]);
+            return;
+        }
+
+        if (repo.checkout(versionNumber))
+        {
+            exitHandler.exit(0, "Checkout successful for version: " + versionNumber);
         }
         else
         {
-            String file = args[1];
+            exitHandler.exit(60, "Invalid version number: " + versionNumber);
+        }
+    }
 
+    private void history(String... args) throws IOException
+    {
+        int limitValue = 0;
+        if (args.length >= 3 && "-last".equals(args[1]))
+        {
             try {
-                int lastVersion = Integer.parseInt(Files.readString(last).trim());
-
-                Path lastPath = versions.resolve(String.valueOf(lastVersion)).resolve(file);
-                if (!Files.exists(lastPath))
-                {
-                    exitHandler.exit(0, "File is not added to gvt. File: " + file);
-                    return;
-                }
-
-                int newVersion = lastVersion + 1;
-                copyFiles(lastVersion, newVersion);
+                limitValue = Integer.parseInt(args[2]);
+            } catch (NumberFormatException ignored) {
 
-                Path newPath = versions.resolve(String.valueOf(newVersion)).resolve(file);
-                Files.deleteIfExists(newPath);
-
-                Files.writeString(last, String.valueOf(newVersion));
-
-                String message = (args.length > 2 && args[2].equals("-m")) ? args[3] : "File detached successfully. File: " + file;
-                Files.writeString(versions.resolve(String.valueOf(newVersion)).resolve("description.txt"), message);
-
-                exitHandler.exit(0, "File detached successfully. File: " + file);
-            } catch (IOException e) {
-                e.printStackTrace(System.err);
-                exitHandler.exit(31, "File cannot be detached, see ERR for details. File: " + file);
             }
         }
-    }
+        int remaining = limitValue > 0 ? limitValue : Integer.MAX_VALUE;
 
-    public void checkout(String... args) {
-        if (args.length < 2)
+        StringBuilder result = new StringBuilder();
+        Iterator<HistoryEntry> entries = repo.history();
+        while (remaining-- > 0 && entries.hasNext())
         {
-            exitHandler.exit(60, "Invalid version number: ");
+            HistoryEntry entry = entries.next();
+            result.append(entry.version()).append(": ").append(entry.message()).append("\n");
         }
-        else
+        exitHandler.exit(0, result.toString());
+    }
+
+    private void version(String... args) throws IOException
+    {
+        int versionNumber = repo.lastVersion();
+        if (args.length >= 2)
         {
-            int versionNumber;
             try {
                 versionNumber = Integer.parseInt(args[1]);
             } catch (NumberFormatException e) {
-                exitHandler.exit(60, "Invalid version number: " + args[1]);
+                exitHandler.exit(60, "Invalid version number: " + args[1] + ".");
                 return;
             }
-
-            try {
-                Path versionPath = versions.resolve(String.valueOf(versionNumber));
-                if (!Files.exists(versionPath))
-                {
-                    exitHandler.exit(60, "Invalid version number: " + versionNumber);
-                }
-                else
-                {
-                    List<String> files = new ArrayList<>();
-                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(versionPath)) {
-                        for (Path path : stream)
-                        {
-                            if (Files.isRegularFile(path))
-                            {
-                                String name = path.getFileName().toString();
-                                if (!"description.txt".equals(name))
-                                {
-                                    files.add(name);
-                                }
-                            }
-                        }
-                    }
-
-                    for (String names : files)
-                    {
-                        Path oldFile = versionPath.resolve(names);
-                        Path newFile = Path.of(names);
-                        Files.copy(oldFile, newFile, StandardCopyOption.REPLACE_EXISTING);
-                    }
-
-                    Files.writeString(active, String.valueOf(versionNumber));
-
-                    exitHandler.exit(0, "Checkout successful for version: " + versionNumber);
-                }
-            } catch (IOException e) {
-                e.printStackTrace(System.err);
-                exitHandler.exit(-3, "Underlying system problem. See ERR for details.");
-            }
         }
-    }
 
-    public void commit(String... args)
-    {
-        if (args.length < 2)
+        Optional<VersionInfo> info = repo.version(versionNumber);
+        if (info.isEmpty())
         {
-            exitHandler.exit(50, "Please specify file to commit.");
+            exitHandler.exit(60, "Invalid version number: " + versionNumber + ".");
         }
         else
         {
-            String file = args[1];
-            Path filePath = Path.of(file);
-
-            if (!Files.exists(filePath))
-            {
-                exitHandler.exit(51, "File not found. File: " + file);
-            }
-            else
-            {
-                try {
-                    int lastVersion = Integer.parseInt(Files.readString(last).trim());
-
-
-                    Path lastPath = versions.resolve(String.valueOf(lastVersion)).resolve(filePath.getFileName().toString());
-                    if (!Files.exists(lastPath))
-                    {
-                        exitHandler.exit(0, "File is not added to gvt. File: " + file);
-                    }
-                    else
-                    {
-                        int newVersion = lastVersion + 1;
-                        copyFiles(lastVersion, newVersion);
-
-                        Path newCatalog = versions.resolve(String.valueOf(newVersion));
-                        Files.createDirectories(newCatalog);
-
-
-                        Path commitPath = newCatalog.resolve(filePath.getFileName().toString());
-                        Files.copy(filePath, commitPath, StandardCopyOption.REPLACE_EXISTING);
-
-                        Files.writeString(last, String.valueOf(newVersion));
-
-                        String message = (args.length > 2 && args[2].equals("-m")) ? args[3] : "File committed successfully. File: " + file;
-                        Files.writeString(versions.resolve(String.valueOf(newVersion)).resolve("description.txt"), message);
+            exitHandler.exit(0, "Version: " + versionNumber + "\n" + info.get().message());
+        }
+    }
 
-                        exitHandler.exit(0, "File committed successfully. File: " + file);
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace(System.err);
-                    exitHandler.exit(52, "File cannot be committed, see ERR for details. File: " + file);
-                }
-            }
+    private void status() throws IOException
+    {
+        StringBuilder result = new StringBuilder();
+        for (FileStatus status : repo.status())
+        {
+            result.append(status.change() == FileStatus.Change.MODIFIED ? "Modified: " : "Deleted: ")
+                    .append(status.file()).append("\n");
         }
+        exitHandler.exit(0, result.length() == 0 ? "No changes." : result.toString());
     }
 
-    public void history(String... args)
+    private void prune() throws IOException
     {
+        Optional<RetentionPolicy> policy;
         try {
+            policy = repo.retentionPolicy();
+        } catch (IllegalArgumentException e) {
+            exitHandler.exit(71, "Invalid retention policy. " + e.getMessage());
+            return;
+        }
+        if (policy.isEmpty())
+        {
+            exitHandler.exit(70, "Retention policy is not configured.");
+            return;
+        }
 
-            List<Integer> versionsList = new ArrayList<>();
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(versions))
-            {
-                for (Path path : stream)
-                {
-                    if (Files.isDirectory(path))
-                    {
-                        versionsList.add(Integer.parseInt(path.getFileName().toString()));
-                    }
-                }
-            }
-
-
-            versionsList.sort(Collections.reverseOrder());
+        int pruned = repo.prune(policy.get());
+        exitHandler.exit(0, pruned == 0 ? "Nothing to prune." : "Versions pruned: " + pruned);
+    }
 
-            boolean hasLimit = false;
-            int limitValue = 0;
+    private void bundle(String... args) throws IOException
+    {
+        if (args.length < 3 || !("export".equals(args[1]) || "import".equals(args[1])))
+        {
+            exitHandler.exit(80, "Please specify bundle command: export {file} [-from {version}] or import {file}.");
+            return;
+        }
+        Path file = Path.of(args[2]);
 
-            if (args.length >= 3)
+        if ("export".equals(args[1]))
+        {
+            int from = 0;
+            if (args.length >= 5 && "-from".equals(args[3]))
             {
-                if ("-last".equals(args[1]))
-                {
-                    try {
-                        limitValue = Integer.parseInt(args[2]);
-                        hasLimit = true;
-                    } catch (NumberFormatException ignored) {
-
-                    }
+                try {
+                    from = Integer.parseInt(args[4]);
+                } catch (NumberFormatException e) {
+                    exitHandler.exit(60, "Invalid version number: " + args[4]);
+                    return;
                 }
             }
-
-            if (hasLimit && limitValue > 0)
+            if (!repo.hasVersion(from))
             {
-                if (limitValue < versionsList.size())
-                {
-                    versionsList = versionsList.subList(0, limitValue);
-                }
-                else
-                {
-                    versionsList = versionsList.subList(0, versionsList.size());
-                }
+                exitHandler.exit(60, "Invalid version number: " + from);
+                return;
             }
-
-            String result = "";
-            for (int v : versionsList) {
-                String msg = Files.readString(
-                        versions.resolve(String.valueOf(v)).resolve("description.txt")
-                );
-                result += v + ": " + msg.split("\r?\n")[0] + "\n";
+            BundleInfo info = repo.exportBundle(from, file);
+            exitHandler.exit(0, "Bundle exported. Versions: " + info.versions() + ", blobs: " + info.blobs() + ".");
+        }
+        else
+        {
+            if (!Files.isRegularFile(file))
+            {
+                exitHandler.exit(81, "Bundle not found. File: " + args[2]);
+                return;
+            }
+            try {
+                BundleInfo info = repo.importBundle(file);
+                exitHandler.exit(0, "Bundle imported. Last version: " + info.last() + ".");
+            } catch (BundleException e) {
+                exitHandler.exit(81, "Bundle cannot be imported. " + e.getMessage());
             }
-
-            exitHandler.exit(0, result);
-        } catch (IOException e) {
-            e.printStackTrace(System.err);
-            exitHandler.exit(-3, "Underlying system problem. See ERR for details.");
         }
     }
 
-    public void version(String... args)
+    private void sync(String... args) throws IOException
     {
+        boolean push = "push".equals(args[0]);
+        if (args.length < 2)
+        {
+            exitHandler.exit(120, "Please specify repository to " + args[0] + ".");
+            return;
+        }
+        GvtRepository other = GvtRepository.open(Path.of(args[1]));
+        if (!other.isInitialized())
+        {
+            exitHandler.exit(121, "Repository not found. Path: " + args[1]);
+            return;
+        }
         try {
-            int versionNumber = Integer.parseInt(Files.readString(last).trim());
-            if (args.length >= 2)
-            {
-                try {
-                    versionNumber = Integer.parseInt(args[1]);
-                } catch (NumberFormatException e) {
-                    exitHandler.exit(60, "Invalid version number: " + args[1] + ".");
-                    return;
-                }
-            }
-
-            Path versionPath = versions.resolve(String.valueOf(versionNumber));
-            if (!Files.exists(versionPath))
+            BundleInfo info = push ? repo.push(other) : repo.pull(other);
+            if (info.from() == info.last())
             {
-                exitHandler.exit(60, "Invalid version number: " + versionNumber + ".");
+                exitHandler.exit(0, "Already up to date. Last version: " + info.last() + ".");
             }
             else
             {
-                String description = Files.readString(versionPath.resolve("description.txt"));
-                exitHandler.exit(0, "Version: " + versionNumber + "\n" + description);
+                exitHandler.exit(0, (push ? "Pushed" : "Pulled") + " versions: " + info.versions() + ", blobs: " + info.blobs()
+                        + ". Last version: " + info.last() + ".");
             }
-        } catch (IOException e) {
-            e.printStackTrace(System.err);
-            exitHandler.exit(-3, "Underlying system problem. See ERR for details.");
+        } catch (BundleException e) {
+            exitHandler.exit(122, "Cannot " + args[0] + ". " + e.getMessage());
         }
     }
 
-    private void copyFiles(int oldVersion, int newVersion) throws IOException
+    private void fsck(String... args) throws IOException
     {
-        Path oldPath = versions.resolve(String.valueOf(oldVersion));
+        boolean repair = args.length > 1 && "-repair".equals(args[1]);
+        FsckReport report = repo.fsck(repair, System.err);
 
-        Path newPath = versions.resolve(String.valueOf(newVersion));
-        Files.createDirectories(newPath);
+        StringBuilder result = new StringBuilder();
+        for (String problem : report.problems())
+        {
+            result.append("Problem: ").append(problem).append("\n");
+        }
+        for (String repaired : report.repaired())
+        {
+            result.append("Repaired: ").append(repaired).append("\n");
+        }
+        if (report.problems().isEmpty())
+        {
+            result.append("Repository is consistent. ");
+        }
+        result.append(String.format(Locale.ROOT, "Versions: %d, files: %d, verified: %.1f MiB (%.1f MiB/s).",
+                report.versions(), report.files(), report.bytes() / (1024.0 * 1024.0), report.throughput()));
+        exitHandler.exit(report.consistent() ? 0 : 90, result.toString());
+    }
 
-        if (Files.exists(oldPath))
+    private void blame(String... args) throws IOException
+    {
+        if (args.length < 2)
         {
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(oldPath)) {
-                for (Path path : stream)
-                {
-                    if (!"description.txt".equals(path.getFileName().toString()))
-                    {
-                        Files.copy(path, newPath.resolve(path.getFileName().toString()));
-                    }
-                }
-            }
+            exitHandler.exit(110, "Please specify file to blame.");
+            return;
+        }
+        Optional<List<BlameLine>> lines = repo.blame(args[1]);
+        if (lines.isEmpty())
+        {
+            exitHandler.exit(111, "File is not added to gvt. File: " + args[1]);
+            return;
+        }
+        StringBuilder result = new StringBuilder();
+        for (BlameLine line : lines.get())
+        {
+            result.append(line.version()).append(": ").append(line.line()).append("\n");
+        }
+        exitHandler.exit(0, result.toString());
+    }
+
+    private void watch() throws IOException
+    {
+        if (repo.isWatched())
+        {
+            exitHandler.exit(100, "Current directory is already watched.");
+            return;
+        }
+        try (Watcher watcher = repo.watch())
+        {
+            System.out.println("Watching for changes. Press Ctrl+C to stop.");
+            watcher.awaitTermination();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        exitHandler.exit(0, "Watching stopped.");
     }
 }
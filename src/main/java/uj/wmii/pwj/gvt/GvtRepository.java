@@ -0,0 +1,944 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Programmatic access to a gvt repository. Unlike the command line ({@link Gvt}), it never prints
+ * or exits: results are returned as values and system problems are thrown as {@link IOException}.
+ * Many repositories (or many operations on one) can be used within a single JVM.
+ */
+public class GvtRepository implements AutoCloseable {
+
+    private static final String DESCRIPTION = "description.txt";
+    private static final int HISTORY_BATCH = 32;
+    private static final String PRUNE_STAGING = "prune";
+
+    private final Path root;
+    private final Path catalog;
+    private final Path versions;
+    private final Path manifests;
+    private final Path active;
+    private final Path last;
+    private final Path config;
+    private final VersionIndex index;
+    private final CommitLog log;
+    private final BlobCache cache;
+    private final DirtySet dirty;
+    private final Blame blame;
+    private final HistoryChain chain;
+    private final BlobIndex blobs;
+    private final Object hasherLock = new Object();
+    private HashPipeline hasher;
+
+    private GvtRepository(Path root, BlobCache cache)
+    {
+        this.root = root;
+        this.cache = cache;
+        catalog = root.resolve(".gvt");
+        versions = catalog.resolve("versions");
+        manifests = catalog.resolve("manifests");
+        active = catalog.resolve("active");
+        last = catalog.resolve("last");
+        config = catalog.resolve("config");
+        index = new VersionIndex(catalog);
+        log = new CommitLog(catalog);
+        dirty = new DirtySet(root, catalog);
+        blame = new Blame(this);
+        chain = new HistoryChain(this);
+        blobs = new BlobIndex(this);
+    }
+
+    /**
+     * Opens the repository rooted in the given working directory. The directory does not have to be initialized yet.
+     */
+    public static GvtRepository open(Path root)
+    {
+        return new GvtRepository(root, null);
+    }
+
+    /**
+     * Opens the repository with a cache of stored file contents, used by {@link #checkout(int)}.
+     */
+    public static GvtRepository open(Path root, BlobCache cache)
+    {
+        return new GvtRepository(root, cache);
+    }
+
+    public Path root()
+    {
+        return root;
+    }
+
+    public boolean isInitialized()
+    {
+        return Files.isDirectory(catalog) && Files.exists(last);
+    }
+
+    /**
+     * Initializes the repository with version 0.
+     *
+     * @return false if the directory was already initialized
+     */
+    public synchronized boolean init() throws IOException
+    {
+        if (Files.exists(catalog))
+        {
+            return false;
+        }
+        Files.createDirectories(versions.resolve("0"));
+        Files.createDirectories(manifests);
+
+        Files.writeString(versions.resolve("0").resolve(DESCRIPTION), "GVT initialized.");
+        Manifest.EMPTY.write(manifestPath(0));
+        chain.put(0, HistoryChain.next(null, Manifest.EMPTY, "GVT initialized."));
+        blobs.create();
+        Files.writeString(active, "0");
+        log.append(0, "GVT initialized.");
+        Files.writeString(last, "0");
+        return true;
+    }
+
+    public int lastVersion() throws IOException
+    {
+        return index.lastVersion();
+    }
+
+    public int activeVersion() throws IOException
+    {
+        return Integer.parseInt(Files.readString(active).trim());
+    }
+
+    /**
+     * Adds a file to a new version.
+     *
+     * @param message version message, or null for the default one
+     */
+    public synchronized CommitResult add(String file, String message) throws IOException
+    {
+        Path filePath = root.resolve(file);
+        if (!Files.exists(filePath))
+        {
+            return new CommitResult(CommitResult.Status.FILE_NOT_FOUND, file, -1);
+        }
+
+        int lastVersion = index.lastVersion();
+        String name = filePath.getFileName().toString();
+        if (Files.exists(versionPath(lastVersion).resolve(name)))
+        {
+            return new CommitResult(CommitResult.Status.ALREADY_ADDED, file, -1);
+        }
+
+        int newVersion = lastVersion + 1;
+        Path newCatalog = copyFiles(lastVersion, newVersion);
+        Files.copy(filePath, newCatalog.resolve(name));
+
+        byte[] digest = HashPipeline.hashFile(newCatalog.resolve(name));
+        Manifest manifest = manifest(lastVersion).with(name, digest);
+        publish(newVersion, message != null ? message : "File added successfully. File: " + file, manifest);
+        dirty.committed(newVersion, Map.of(name, digest));
+        blame.added(name, newVersion, digest);
+        return new CommitResult(CommitResult.Status.CREATED, file, newVersion);
+    }
+
+    /**
+     * Removes a file from a new version. The working copy is left untouched.
+     *
+     * @param message version message, or null for the default one
+     */
+    public synchronized CommitResult detach(String file, String message) throws IOException
+    {
+        int lastVersion = index.lastVersion();
+        if (!Files.exists(versionPath(lastVersion).resolve(file)))
+        {
+            return new CommitResult(CommitResult.Status.NOT_ADDED, file, -1);
+        }
+
+        int newVersion = lastVersion + 1;
+        Path newCatalog = copyFiles(lastVersion, newVersion);
+        Files.deleteIfExists(newCatalog.resolve(file));
+
+        Manifest manifest = manifest(lastVersion).without(file);
+        publish(newVersion, message != null ? message : "File detached successfully. File: " + file, manifest);
+        dirty.committed(newVersion, Collections.singletonMap(file, null));
+        blame.detached(file);
+        return new CommitResult(CommitResult.Status.CREATED, file, newVersion);
+    }
+
+    /**
+     * Stores the current content of a tracked file in a new version.
+     *
+     * @param message version message, or null for the default one
+     */
+    public synchronized CommitResult commit(String file, String message) throws IOException
+    {
+        Path filePath = root.resolve(file);
+        if (!Files.exists(filePath))
+        {
+            return new CommitResult(CommitResult.Status.FILE_NOT_FOUND, file, -1);
+        }
+
+        int lastVersion = index.lastVersion();
+        String name = filePath.getFileName().toString();
+        if (!Files.exists(versionPath(lastVersion).resolve(name)))
+        {
+            return new CommitResult(CommitResult.Status.NOT_ADDED, file, -1);
+        }
+
+        int newVersion = lastVersion + 1;
+        Path newCatalog = copyFiles(lastVersion, newVersion);
+        Files.copy(filePath, newCatalog.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+
+        Manifest previous = manifest(lastVersion);
+        byte[] digest = HashPipeline.hashFile(newCatalog.resolve(name));
+        Manifest manifest = previous.with(name, digest);
+        publish(newVersion, message != null ? message : "File committed successfully. File: " + file, manifest);
+        dirty.committed(newVersion, Map.of(name, digest));
+        blame.committed(name, lastVersion, previous.files().get(name), newVersion, digest);
+        return new CommitResult(CommitResult.Status.CREATED, file, newVersion);
+    }
+
+    /**
+     * Stores the current content of every modified tracked file in a single new version.
+     * Deleted files are left tracked, as with {@link #commit(String, String)}.
+     *
+     * @param message version message, or null for the default one
+     * @return one result per committed file, all with the same version, or an empty list if nothing was modified
+     */
+    public synchronized List<CommitResult> commitModified(String message) throws IOException
+    {
+        List<String> names = new ArrayList<>();
+        for (FileStatus status : status())
+        {
+            if (status.change() == FileStatus.Change.MODIFIED)
+            {
+                names.add(status.file());
+            }
+        }
+        if (names.isEmpty())
+        {
+            return List.of();
+        }
+
+        int lastVersion = index.lastVersion();
+        int newVersion = lastVersion + 1;
+        Path newCatalog = copyFiles(lastVersion, newVersion);
+        Manifest previous = manifest(lastVersion);
+        List<Path> copies = new ArrayList<>();
+        List<CommitResult> results = new ArrayList<>();
+        for (String name : names)
+        {
+            Path copy = newCatalog.resolve(name);
+            Files.copy(root.resolve(name), copy, StandardCopyOption.REPLACE_EXISTING);
+            copies.add(copy);
+            results.add(new CommitResult(CommitResult.Status.CREATED, name, newVersion));
+        }
+        Manifest manifest = previous;
+        for (Map.Entry<Path, byte[]> copy : hasher().hashAll(copies).entrySet())
+        {
+            manifest = manifest.with(copy.getKey().getFileName().toString(), copy.getValue());
+        }
+        publish(newVersion, message != null ? message : "Files committed successfully. Files: " + String.join(", ", names), manifest);
+        Map<String, byte[]> stored = new HashMap<>();
+        for (String name : names)
+        {
+            stored.put(name, manifest.files().get(name));
+        }
+        dirty.committed(newVersion, stored);
+        for (String name : names)
+        {
+            blame.committed(name, lastVersion, previous.files().get(name), newVersion, manifest.files().get(name));
+        }
+        return results;
+    }
+
+    /**
+     * Restores the files of the given version in the working directory and makes it the active version.
+     *
+     * @return false if there is no such version
+     */
+    public synchronized boolean checkout(int version) throws IOException
+    {
+        if (!index.contains(version))
+        {
+            return false;
+        }
+        Path versionPath = versionPath(version);
+        for (String name : trackedFiles(versionPath))
+        {
+            if (cache != null)
+            {
+                cache.copy(versionPath.resolve(name), root.resolve(name));
+            }
+            else
+            {
+                Files.copy(versionPath.resolve(name), root.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.writeString(active, String.valueOf(version));
+        return true;
+    }
+
+    public boolean hasVersion(int version) throws IOException
+    {
+        return index.contains(version);
+    }
+
+    public Optional<VersionInfo> version(int version) throws IOException
+    {
+        if (!index.contains(version))
+        {
+            return Optional.empty();
+        }
+        Path versionPath = versionPath(version);
+        String message = Files.readString(versionPath.resolve(DESCRIPTION));
+        return Optional.of(new VersionInfo(version, message, trackedFiles(versionPath)));
+    }
+
+    /**
+     * All versions, newest first. Entries are read lazily from the end of the commit log, so callers
+     * interested only in the most recent ones pay only for what they consume. Versions older than the log,
+     * or behind a damaged part of it, are read from their descriptions. Read errors surface as {@link UncheckedIOException}.
+     */
+    public Iterator<HistoryEntry> history() throws IOException
+    {
+        int lastVersion = index.lastVersion();
+        long logEnd = log.end();
+        return new Iterator<>() {
+            private final Deque<HistoryEntry> pending = new ArrayDeque<>();
+            private long end = logEnd;
+            private int below = lastVersion + 1;
+            private PrimitiveIterator.OfInt older;
+
+            @Override
+            public boolean hasNext()
+            {
+                try {
+                    while (pending.isEmpty())
+                    {
+                        if (end > 0)
+                        {
+                            CommitLog.Batch batch;
+                            try {
+                                batch = log.readBefore(end, HISTORY_BATCH);
+                            } catch (IOException e) {
+                                // damaged log (see fsck): list the remaining versions from their descriptions
+                                end = 0;
+                                continue;
+                            }
+                            end = batch.end();
+                            for (HistoryEntry entry : batch.entries())
+                            {
+                                // records above last or repeated after an interrupted write are not part of history
+                                if (entry.version() < below && !index.isPruned(entry.version()))
+                                {
+                                    pending.add(entry);
+                                    below = entry.version();
+                                }
+                            }
+                        }
+                        else
+                        {
+                            if (older == null)
+                            {
+                                older = index.descending(below - 1);
+                            }
+                            if (!older.hasNext())
+                            {
+                                return false;
+                            }
+                            int v = older.nextInt();
+                            String message = Files.readString(versionPath(v).resolve(DESCRIPTION));
+                            pending.add(new HistoryEntry(v, message.split("\r?\n")[0]));
+                            below = v;
+                        }
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public HistoryEntry next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                return pending.poll();
+            }
+        };
+    }
+
+    /**
+     * The policy configured in {@code .gvt/config}, if any.
+     *
+     * @throws IllegalArgumentException if the configuration is invalid
+     */
+    public Optional<RetentionPolicy> retentionPolicy() throws IOException
+    {
+        return RetentionPolicy.load(config);
+    }
+
+    /**
+     * Removes versions not retained by the policy. Each run of removed versions is squashed into the next
+     * retained version, whose message gets the removed messages appended. Retained versions keep their numbers;
+     * removed numbers become invalid. If the active version is removed, the version it was squashed into becomes active.
+     * <p>
+     * The merged messages are staged in {@code .gvt/prune} first; marking the removed versions is the point
+     * of no return, after which the staged messages are moved into place. The staging directory goes once the
+     * removed versions are deleted. A prune interrupted before that point is discarded, one interrupted after it
+     * is completed, by the next prune or {@code fsck -repair}.
+     *
+     * @return number of removed versions
+     */
+    public synchronized int prune(RetentionPolicy policy) throws IOException
+    {
+        recoverPrune();
+        int lastVersion = index.lastVersion();
+        List<Integer> squashed = new ArrayList<>();
+        List<Integer> removed = new ArrayList<>();
+        SortedMap<Integer, String> messages = new TreeMap<>();
+        Path staging = catalog.resolve(PRUNE_STAGING);
+        for (int v = 0; v <= lastVersion; v++)
+        {
+            if (index.isPruned(v))
+            {
+                continue;
+            }
+            if (!policy.retains(v, lastVersion))
+            {
+                squashed.add(v);
+                continue;
+            }
+            String message = Files.readString(versionPath(v).resolve(DESCRIPTION));
+            if (!squashed.isEmpty())
+            {
+                StringBuilder merged = new StringBuilder(message);
+                for (int i = squashed.size() - 1; i >= 0; i--)
+                {
+                    int s = squashed.get(i);
+                    merged.append("\n\nSquashed version ").append(s).append(":\n")
+                            .append(Files.readString(versionPath(s).resolve(DESCRIPTION)));
+                }
+                message = merged.toString();
+                // named after the last squashed version: once that is marked as pruned, the message belongs in place
+                Files.createDirectories(staging);
+                Files.writeString(staging.resolve(v + "." + squashed.get(squashed.size() - 1)), message);
+                removed.addAll(squashed);
+                squashed.clear();
+            }
+            messages.put(v, message);
+        }
+        if (removed.isEmpty())
+        {
+            return 0;
+        }
+
+        index.markPruned(removed.stream().mapToInt(Integer::intValue).toArray());
+        log.rewrite(messages);
+        publishStagedDescriptions();
+        completePrune(lastVersion, removed);
+        Files.delete(staging);
+        return removed.size();
+    }
+
+    /**
+     * Finishes or discards a prune that was interrupted, see {@link #prune(RetentionPolicy)}.
+     *
+     * @return whether there was one
+     */
+    boolean recoverPrune() throws IOException
+    {
+        Path staging = catalog.resolve(PRUNE_STAGING);
+        if (!Files.isDirectory(staging))
+        {
+            return false;
+        }
+        if (!publishStagedDescriptions())
+        {
+            Files.delete(staging);
+            return true;
+        }
+        int lastVersion = index.lastVersion();
+        SortedMap<Integer, String> messages = new TreeMap<>();
+        List<Integer> removed = new ArrayList<>();
+        for (int v = 0; v <= lastVersion; v++)
+        {
+            if (!index.isPruned(v))
+            {
+                messages.put(v, Files.readString(versionPath(v).resolve(DESCRIPTION)));
+            }
+            else if (Files.exists(versionPath(v)))
+            {
+                removed.add(v);
+            }
+        }
+        log.rewrite(messages);
+        completePrune(lastVersion, removed);
+        Files.delete(staging);
+        return true;
+    }
+
+    /**
+     * Moves staged messages whose squashed versions are marked as pruned into place and drops the others.
+     * An empty staging directory is left by a prune whose messages were all moved into place already.
+     *
+     * @return whether the prune the staging directory belongs to got past marking its removed versions
+     */
+    private boolean publishStagedDescriptions() throws IOException
+    {
+        Path staging = catalog.resolve(PRUNE_STAGING);
+        boolean marked = true;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(staging))
+        {
+            for (Path staged : stream)
+            {
+                String[] versionNumbers = staged.getFileName().toString().split("\\.");
+                if (versionNumbers.length == 2 && index.isPruned(Integer.parseInt(versionNumbers[1])))
+                {
+                    Files.move(staged, versionPath(Integer.parseInt(versionNumbers[0])).resolve(DESCRIPTION),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                else
+                {
+                    Files.delete(staged);
+                    marked = false;
+                }
+            }
+        }
+        return marked;
+    }
+
+    private void completePrune(int lastVersion, List<Integer> removed) throws IOException
+    {
+        int activeVersion = activeVersion();
+        if (!index.contains(activeVersion))
+        {
+            while (activeVersion < lastVersion && index.isPruned(activeVersion))
+            {
+                activeVersion++;
+            }
+            Files.writeString(active, String.valueOf(activeVersion));
+        }
+
+        blobs.pruned(removed);
+        for (int v : removed)
+        {
+            deleteVersion(v);
+        }
+        if (cache != null)
+        {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Writes the versions after {@code from} to a bundle file; see {@link #exportBundle(int, WritableByteChannel)}.
+     */
+    public BundleInfo exportBundle(int from, Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            return exportBundle(from, channel);
+        }
+    }
+
+    /**
+     * Streams the versions after {@code from} as a bundle. Every distinct content is written once,
+     * and content already stored in version {@code from} is left out, so incremental bundles
+     * are proportional to new data. A bundle from 0 holds the whole repository.
+     *
+     * @throws BundleException if {@code from} is not a valid version
+     */
+    public synchronized BundleInfo exportBundle(int from, WritableByteChannel out) throws IOException
+    {
+        return Bundle.export(this, from, out);
+    }
+
+    /**
+     * Like {@link #exportBundle(int, WritableByteChannel)}, but also leaves out the content the receiver already stores.
+     */
+    synchronized BundleInfo exportBundle(int from, BlobIndex receiver, WritableByteChannel out) throws IOException
+    {
+        return Bundle.export(this, from, receiver, out);
+    }
+
+    public BundleInfo importBundle(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            return importBundle(channel);
+        }
+    }
+
+    /**
+     * Appends the versions of a bundle. The bundle must start at this repository's last version,
+     * with the same history up to it. Content the bundle leaves out is taken from any version that stores it.
+     * The new versions become visible together once all are stored.
+     *
+     * @throws BundleException if the bundle is malformed or does not continue this repository
+     */
+    public synchronized BundleInfo importBundle(ReadableByteChannel in) throws IOException
+    {
+        BundleInfo info = Bundle.importInto(this, in);
+        blame.clear();
+        return info;
+    }
+
+    /**
+     * Sends the versions another repository on this file system lacks, and only the contents new to it;
+     * see {@link #pull(GvtRepository)}.
+     *
+     * @throws BundleException if the repositories have diverged
+     */
+    public BundleInfo push(GvtRepository target) throws IOException
+    {
+        return Sync.transfer(this, target);
+    }
+
+    /**
+     * Fetches the versions after this repository's last one from another repository on this file system.
+     * The last version must be the same in both; the new versions become visible together once all are stored.
+     *
+     * @return what was transferred; no versions if this repository was up to date
+     * @throws BundleException if the repositories have diverged
+     */
+    public BundleInfo pull(GvtRepository source) throws IOException
+    {
+        return Sync.transfer(source, this);
+    }
+
+    /**
+     * Verifies the structure of the version store and the stored contents against their manifests,
+     * using all cores for hashing.
+     *
+     * @param repair whether to clean up state left by interrupted operations
+     * @param progress where to report verification progress every second, or null
+     */
+    public synchronized FsckReport fsck(boolean repair, PrintStream progress) throws IOException
+    {
+        FsckReport report = new Fsck(this, repair, progress).run();
+        if (repair)
+        {
+            blame.clear();
+            if (cache != null)
+            {
+                cache.clear();
+            }
+        }
+        return report;
+    }
+
+    /**
+     * The lines of a tracked file in the last version, each with the version that introduced it.
+     * Answered from a per-file cache kept up to date by add and commit; without one, the file's revisions are walked once.
+     *
+     * @return empty if the file is not tracked in the last version
+     */
+    public synchronized Optional<List<BlameLine>> blame(String file) throws IOException
+    {
+        int lastVersion = index.lastVersion();
+        byte[] digest = manifest(lastVersion).files().get(file);
+        if (digest == null)
+        {
+            return Optional.empty();
+        }
+        return Optional.of(blame.lines(file, lastVersion, digest));
+    }
+
+    /**
+     * Tracked files of the last version whose working copies were modified or deleted, sorted by change and name.
+     * While a {@link Watcher} runs, only the files it saw changing are compared; otherwise all tracked files are.
+     */
+    public List<FileStatus> status() throws IOException
+    {
+        int lastVersion = index.lastVersion();
+        if (!dirty.isWatched())
+        {
+            return status(lastVersion, null);
+        }
+        Optional<Set<String>> candidates = dirty.read(lastVersion);
+        if (candidates.isPresent())
+        {
+            return status(lastVersion, candidates.get());
+        }
+        // last moved without the watcher knowing (e.g. a bundle was imported): scan once and continue from here
+        List<FileStatus> result = status(lastVersion, null);
+        List<String> names = new ArrayList<>();
+        for (FileStatus status : result)
+        {
+            names.add(status.file());
+        }
+        dirty.rebase(lastVersion, names);
+        return result;
+    }
+
+    /**
+     * Starts watching the working directory in a background thread; see {@link Watcher}.
+     *
+     * @throws IOException also if the directory is already watched
+     */
+    public Watcher watch() throws IOException
+    {
+        return new Watcher(this, dirty);
+    }
+
+    public boolean isWatched() throws IOException
+    {
+        return dirty.isWatched();
+    }
+
+    /**
+     * Compares working copies with the manifest of the last version. Sizes are compared first,
+     * so only same-size working copies are hashed.
+     *
+     * @param candidates the only files that may have changed, or null to compare all tracked files
+     */
+    List<FileStatus> status(int lastVersion, Set<String> candidates) throws IOException
+    {
+        Path lastPath = versionPath(lastVersion);
+
+        Map<String, Path> working = new TreeMap<>();
+        List<Path> toHash = new ArrayList<>();
+        List<FileStatus> deleted = new ArrayList<>();
+        Manifest manifest = manifest(lastVersion);
+        for (String name : manifest.files().keySet())
+        {
+            if (candidates != null && !candidates.contains(name))
+            {
+                continue;
+            }
+            Path workingFile = root.resolve(name);
+            if (!Files.isRegularFile(workingFile))
+            {
+                deleted.add(new FileStatus(name, FileStatus.Change.DELETED));
+            }
+            else if (Files.size(workingFile) != Files.size(lastPath.resolve(name)))
+            {
+                working.put(name, null);
+            }
+            else
+            {
+                working.put(name, workingFile);
+                toHash.add(workingFile);
+            }
+        }
+
+        Map<Path, byte[]> digests = hasher().hashAll(toHash);
+
+        List<FileStatus> result = new ArrayList<>();
+        for (Map.Entry<String, Path> entry : working.entrySet())
+        {
+            Path workingFile = entry.getValue();
+            if (workingFile == null || !Arrays.equals(digests.get(workingFile), manifest.files().get(entry.getKey())))
+            {
+                result.add(new FileStatus(entry.getKey(), FileStatus.Change.MODIFIED));
+            }
+        }
+        result.addAll(deleted);
+        return result;
+    }
+
+    Path catalog()
+    {
+        return catalog;
+    }
+
+    /**
+     * The pipeline status and manifest reconstruction hash with, created on first use and kept until {@link #close()}.
+     */
+    private HashPipeline hasher()
+    {
+        synchronized (hasherLock)
+        {
+            if (hasher == null)
+            {
+                hasher = new HashPipeline();
+            }
+            return hasher;
+        }
+    }
+
+    /**
+     * Stops the hashing threads and releases their buffers. Must not be called while an operation is running;
+     * the repository can be used afterwards and starts them again when needed.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (hasherLock)
+        {
+            if (hasher != null)
+            {
+                hasher.close();
+                hasher = null;
+            }
+        }
+    }
+
+    String description(int version) throws IOException
+    {
+        return Files.readString(versionPath(version).resolve(DESCRIPTION));
+    }
+
+    Path versionPath(int version)
+    {
+        return versions.resolve(String.valueOf(version));
+    }
+
+    VersionIndex index()
+    {
+        return index;
+    }
+
+    HistoryChain chain()
+    {
+        return chain;
+    }
+
+    BlobIndex blobs()
+    {
+        return blobs;
+    }
+
+    private Path manifestPath(int version)
+    {
+        return manifests.resolve(String.valueOf(version));
+    }
+
+    /**
+     * Digests of the files stored in a version. Versions created before manifests existed are hashed once
+     * and their manifest is stored for later use.
+     */
+    Manifest manifest(int version) throws IOException
+    {
+        Path path = manifestPath(version);
+        if (Files.exists(path))
+        {
+            return Manifest.read(path);
+        }
+        Path versionPath = versionPath(version);
+        Map<String, byte[]> digests = new HashMap<>();
+        for (Map.Entry<Path, byte[]> entry : hasher().hashDirectory(versionPath, p -> !DESCRIPTION.equals(p.getFileName().toString())).entrySet())
+        {
+            digests.put(entry.getKey().getFileName().toString(), entry.getValue());
+        }
+        Manifest manifest = Manifest.of(digests);
+        Files.createDirectories(manifests);
+        manifest.write(path);
+        return manifest;
+    }
+
+    List<String> trackedFiles(Path versionPath) throws IOException
+    {
+        List<String> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(versionPath))
+        {
+            for (Path path : stream)
+            {
+                String name = path.getFileName().toString();
+                if (Files.isRegularFile(path) && !DESCRIPTION.equals(name))
+                {
+                    files.add(name);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Writes the message and manifest of a fully populated version and only then makes it the last one.
+     */
+    private void publish(int version, String message, Manifest manifest) throws IOException
+    {
+        store(version, message, manifest, HistoryChain.next(chain.get(version - 1), manifest, message));
+        index.setLast(version);
+        try {
+            blobs.added(version, manifest);
+        } catch (IOException e) {
+            // the version is already published; content missing from the index is only sent again by push and pull
+        }
+    }
+
+    /**
+     * Writes everything describing a version whose files are already stored, except moving {@code last}.
+     */
+    void store(int version, String message, Manifest manifest, byte[] chainValue) throws IOException
+    {
+        chain.put(version, chainValue);
+        Files.writeString(versionPath(version).resolve(DESCRIPTION), message);
+        Files.createDirectories(manifests);
+        manifest.write(manifestPath(version));
+        log.append(version, message);
+    }
+
+    long logEnd() throws IOException
+    {
+        return log.end();
+    }
+
+    /**
+     * Removes what an interrupted write left of versions {@code lastVersion + 1} to {@code upTo}: their directories,
+     * manifests, pruned marks and the log records appended after {@code logEnd}.
+     */
+    void discardAbove(int lastVersion, int upTo, long logEnd) throws IOException
+    {
+        for (int v = upTo; v > lastVersion; v--)
+        {
+            deleteVersion(v);
+        }
+        index.clearPrunedAbove(lastVersion);
+        log.truncate(logEnd);
+    }
+
+    void deleteVersion(int version) throws IOException
+    {
+        Files.deleteIfExists(manifestPath(version));
+        Path versionPath = versionPath(version);
+        if (!Files.exists(versionPath))
+        {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(versionPath))
+        {
+            for (Path path : stream)
+            {
+                Files.delete(path);
+            }
+        }
+        Files.delete(versionPath);
+    }
+
+    private Path copyFiles(int oldVersion, int newVersion) throws IOException
+    {
+        Path oldPath = versionPath(oldVersion);
+
+        // anything left there by an interrupted write must not leak into the new version
+        deleteVersion(newVersion);
+        Path newPath = versionPath(newVersion);
+        Files.createDirectories(newPath);
+
+        if (Files.exists(oldPath))
+        {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(oldPath)) {
+                for (Path path : stream)
+                {
+                    if (!DESCRIPTION.equals(path.getFileName().toString()))
+                    {
+                        Files.copy(path, newPath.resolve(path.getFileName().toString()));
+                    }
+                }
+            }
+        }
+        return newPath;
+    }
+}
@@ -0,0 +1,316 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * SHA-256 hashing of many files at once, split into three stages:
+ * enumeration (calling thread) feeds a bounded queue of paths, reader threads fill pooled direct buffers,
+ * and digest tasks on a fork-join pool consume them. Chunks of one file are digested in order,
+ * different files in parallel. Memory use is bounded by the buffer pool, not by file sizes.
+ * A pipeline is meant to be reused; its threads end after a while without work and start again on demand.
+ */
+class HashPipeline implements AutoCloseable {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+    private static final int IDLE_SECONDS = 30;
+
+    private static final Path END = Path.of("");
+
+    private final int readers;
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final ExecutorService readerPool;
+    private final ForkJoinPool digestPool;
+    private final LongAdder hashedFiles = new LongAdder();
+    private final LongAdder hashedBytes = new LongAdder();
+
+    HashPipeline()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    HashPipeline(int parallelism)
+    {
+        readers = parallelism;
+        buffers = new ArrayBlockingQueue<>(2 * parallelism);
+        for (int i = 0; i < 2 * parallelism; i++)
+        {
+            buffers.add(ByteBuffer.allocateDirect(CHUNK_SIZE));
+        }
+        ThreadPoolExecutor readerPool = new ThreadPoolExecutor(parallelism, parallelism, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "gvt-hash-reader");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        readerPool.allowCoreThreadTimeOut(true);
+        this.readerPool = readerPool;
+        // fork-join workers end when idle on their own
+        digestPool = new ForkJoinPool(parallelism);
+    }
+
+    static String hex(byte[] digest)
+    {
+        return HexFormat.of().formatHex(digest);
+    }
+
+    /**
+     * Hashes a single file in the calling thread.
+     */
+    static byte[] hashFile(Path file) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            while (channel.read(buffer) >= 0)
+            {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    Map<Path, byte[]> hashDirectory(Path directory, Predicate<Path> filter) throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return hashAll(files.filter(Files::isRegularFile).filter(filter));
+        }
+    }
+
+    Map<Path, byte[]> hashAll(Collection<Path> files) throws IOException
+    {
+        if (files.isEmpty())
+        {
+            return new HashMap<>();
+        }
+        return hashAll(files.stream());
+    }
+
+    /**
+     * Hashes every file of the stream. The stream is consumed lazily, so enumeration overlaps with hashing.
+     *
+     * @throws IOException the first failure to read a file
+     */
+    Map<Path, byte[]> hashAll(Stream<Path> files) throws IOException
+    {
+        Map<Path, byte[]> digests = new ConcurrentHashMap<>();
+        List<IOException> failures = Collections.synchronizedList(new ArrayList<>());
+        hashEach(files, (path, digest, error) -> {
+            if (error != null)
+            {
+                failures.add(error);
+            }
+            else
+            {
+                digests.put(path, digest);
+            }
+        });
+        if (!failures.isEmpty())
+        {
+            throw failures.get(0);
+        }
+        return new HashMap<>(digests);
+    }
+
+    /**
+     * Receives the result of hashing one file, from a digest thread, as soon as the file is done.
+     */
+    interface Sink {
+        void accept(Path file, byte[] digest, IOException error);
+    }
+
+    /**
+     * Hashes every file of the stream, passing each result to the sink without collecting them,
+     * so the number of files does not affect memory use. Returns when all results were delivered.
+     */
+    void hashEach(Stream<Path> files, Sink sink) throws IOException
+    {
+        Spliterator<Path> remaining = files.spliterator();
+        Path[] first = new Path[1];
+        try {
+            if (!remaining.tryAdvance(path -> first[0] = path))
+            {
+                return;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        BlockingQueue<Path> queue = new ArrayBlockingQueue<>(4 * readers);
+        int[] inFlight = new int[1];
+        List<RuntimeException> sinkFailures = Collections.synchronizedList(new ArrayList<>());
+
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < readers; i++)
+        {
+            workers.add(readerPool.submit(() -> {
+                Path path;
+                while ((path = queue.take()) != END)
+                {
+                    Path file = path;
+                    synchronized (inFlight)
+                    {
+                        inFlight[0]++;
+                    }
+                    read(file).whenComplete((digest, failure) -> {
+                        try {
+                            sink.accept(file, digest, failure == null ? null : unwrap(failure));
+                        } catch (RuntimeException e) {
+                            sinkFailures.add(e);
+                        } finally {
+                            synchronized (inFlight)
+                            {
+                                inFlight[0]--;
+                                inFlight.notifyAll();
+                            }
+                        }
+                    });
+                }
+                return null;
+            }));
+        }
+
+        try {
+            try {
+                queue.put(first[0]);
+                remaining.forEachRemaining(path -> {
+                    try {
+                        queue.put(path);
+                    } catch (InterruptedException e) {
+                        throw new CancellationException();
+                    }
+                });
+            } finally {
+                for (int i = 0; i < readers; i++)
+                {
+                    queue.put(END);
+                }
+            }
+            for (Future<?> worker : workers)
+            {
+                worker.get();
+            }
+            synchronized (inFlight)
+            {
+                while (inFlight[0] > 0)
+                {
+                    inFlight.wait();
+                }
+            }
+        } catch (InterruptedException | CancellationException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Hashing interrupted", e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (!sinkFailures.isEmpty())
+        {
+            throw sinkFailures.get(0);
+        }
+    }
+
+    long hashedFiles()
+    {
+        return hashedFiles.sum();
+    }
+
+    long hashedBytes()
+    {
+        return hashedBytes.sum();
+    }
+
+    /**
+     * Buffers currently in the pool; all of them once no file is being hashed.
+     */
+    int availableBuffers()
+    {
+        return buffers.size();
+    }
+
+    private CompletableFuture<byte[]> read(Path path) throws InterruptedException
+    {
+        MessageDigest digest = newDigest();
+        CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            while (true)
+            {
+                ByteBuffer buffer = buffers.take();
+                buffer.clear();
+                int read;
+                try {
+                    read = channel.read(buffer);
+                } catch (IOException e) {
+                    buffers.put(buffer);
+                    throw e;
+                }
+                if (read < 0)
+                {
+                    buffers.put(buffer);
+                    break;
+                }
+                buffer.flip();
+                tail = tail.thenRunAsync(() -> {
+                    hashedBytes.add(buffer.remaining());
+                    digest.update(buffer);
+                    buffers.add(buffer);
+                }, digestPool);
+            }
+        } catch (IOException e) {
+            return tail.thenCompose(ignored -> CompletableFuture.failedFuture(new UncheckedIOException(e)));
+        }
+        return tail.thenApply(ignored -> {
+            hashedFiles.increment();
+            return digest.digest();
+        });
+    }
+
+    static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static IOException unwrap(Throwable e)
+    {
+        Throwable cause = e;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null)
+        {
+            cause = cause.getCause();
+        }
+        if (cause instanceof UncheckedIOException unchecked)
+        {
+            return unchecked.getCause();
+        }
+        if (cause instanceof IOException io)
+        {
+            return io;
+        }
+        return new IOException(cause);
+    }
+
+    @Override
+    public void close()
+    {
+        readerPool.shutdownNow();
+        digestPool.shutdown();
+    }
+}
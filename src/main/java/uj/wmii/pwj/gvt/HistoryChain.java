@@ -0,0 +1,99 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Running hash of the history, kept in {@code .gvt/chain} as one 32-byte value per version number:
+ * SHA-256 of the previous version's value, the digest of the version's manifest and the digest of its description.
+ * Two repositories have the same history up to a version exactly when its values are equal, so telling whether
+ * one continues the other takes one read on each side.
+ * <p>
+ * A value is written before its version becomes visible and not changed afterwards: prune keeps the values
+ * of retained versions although their descriptions grow, and those of pruned versions stay in place.
+ * Repositories created before the chain existed get it on first use, computed over the versions they still have.
+ */
+class HistoryChain {
+
+    static final int LENGTH = 32;
+
+    private static final byte[] ROOT = new byte[LENGTH];
+
+    private final GvtRepository repo;
+    private final Path file;
+
+    HistoryChain(GvtRepository repo)
+    {
+        this.repo = repo;
+        this.file = repo.catalog().resolve("chain");
+    }
+
+    /**
+     * The value of a version, which must not be above the last one.
+     */
+    synchronized byte[] get(int version) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            int stored = (int) (channel.size() / LENGTH);
+            for (int v = stored; v <= version; v++)
+            {
+                // only repositories older than the chain get here; versions pruned by then are left out
+                byte[] previous = v == 0 ? ROOT : read(channel, v - 1);
+                byte[] value = repo.index().isPruned(v) ? previous : next(previous, repo.manifest(v), repo.description(v));
+                write(channel, v, value);
+            }
+            return read(channel, version);
+        }
+    }
+
+    /**
+     * Stores the value of a version that is not visible yet.
+     */
+    synchronized void put(int version, byte[] value) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+        {
+            write(channel, version, value);
+        }
+    }
+
+    /**
+     * The value of a version following the one whose value is {@code previous}, or following none if it is null.
+     */
+    static byte[] next(byte[] previous, Manifest manifest, String description)
+    {
+        MessageDigest digest = HashPipeline.newDigest();
+        digest.update(previous == null ? ROOT : previous);
+        digest.update(manifest.digest());
+        digest.update(HashPipeline.newDigest().digest(description.getBytes(StandardCharsets.UTF_8)));
+        return digest.digest();
+    }
+
+    private static byte[] read(FileChannel channel, int version) throws IOException
+    {
+        ByteBuffer value = ByteBuffer.allocate(LENGTH);
+        while (value.hasRemaining())
+        {
+            if (channel.read(value, (long) version * LENGTH + value.position()) < 0)
+            {
+                throw new IOException("History chain ends before version " + version + ".");
+            }
+        }
+        return value.array();
+    }
+
+    private static void write(FileChannel channel, int version, byte[] value) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer, (long) version * LENGTH + buffer.position());
+        }
+    }
+}
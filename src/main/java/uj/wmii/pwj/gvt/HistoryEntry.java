@@ -0,0 +1,7 @@
+package uj.wmii.pwj.gvt;
+
+/**
+ * One line of history: a version number and the first line of its message.
+ */
+public record HistoryEntry(int version, String message) {
+}
@@ -0,0 +1,164 @@
+package uj.wmii.pwj.gvt;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Line matching by Myers' O(ND) difference algorithm in its linear-space form: the middle snake of an
+ * optimal edit script splits the problem in two, recursively. Lines present on one side only cannot match
+ * and are left out, and common prefixes and suffixes are matched up front, so the usual small edit of a large file,
+ * and even a complete rewrite, cost little more than comparing it once.
+ */
+class LineDiff {
+
+    private final int[] a;
+    private final int[] b;
+    private final int[] matches;
+
+    private LineDiff(int[] a, int[] b)
+    {
+        this.a = a;
+        this.b = b;
+        this.matches = new int[a.length];
+        Arrays.fill(matches, -1);
+    }
+
+    /**
+     * @return for each line of {@code before}, the index of the same line in {@code after}, or -1 if it was removed
+     */
+    static int[] match(List<String> before, List<String> after)
+    {
+        Map<String, Integer> ids = new HashMap<>();
+        int[] a = new int[before.size()];
+        int[] b = new int[after.size()];
+        for (int i = 0; i < a.length; i++)
+        {
+            a[i] = ids.computeIfAbsent(before.get(i), k -> ids.size());
+        }
+        for (int i = 0; i < b.length; i++)
+        {
+            b[i] = ids.computeIfAbsent(after.get(i), k -> ids.size());
+        }
+        int[] aLines = candidates(a, b);
+        int[] bLines = candidates(b, a);
+        LineDiff diff = new LineDiff(select(a, aLines), select(b, bLines));
+        diff.diff(0, aLines.length, 0, bLines.length);
+
+        int[] matches = new int[a.length];
+        Arrays.fill(matches, -1);
+        for (int i = 0; i < aLines.length; i++)
+        {
+            if (diff.matches[i] >= 0)
+            {
+                matches[aLines[i]] = bLines[diff.matches[i]];
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return indexes of the lines of {@code lines} that also occur in {@code other}
+     */
+    private static int[] candidates(int[] lines, int[] other)
+    {
+        BitSet present = new BitSet();
+        for (int id : other)
+        {
+            present.set(id);
+        }
+        return IntStream.range(0, lines.length).filter(i -> present.get(lines[i])).toArray();
+    }
+
+    private static int[] select(int[] lines, int[] indexes)
+    {
+        int[] selected = new int[indexes.length];
+        for (int i = 0; i < indexes.length; i++)
+        {
+            selected[i] = lines[indexes[i]];
+        }
+        return selected;
+    }
+
+    private void diff(int aLo, int aHi, int bLo, int bHi)
+    {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo])
+        {
+            matches[aLo++] = bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1])
+        {
+            matches[--aHi] = --bHi;
+        }
+        if (aLo == aHi || bLo == bHi)
+        {
+            return;
+        }
+        // both halves are strictly smaller: with the ends stripped, at least one edit lies on each side of the snake
+        int[] snake = middleSnake(aLo, aHi, bLo, bHi);
+        diff(aLo, snake[0], bLo, snake[1]);
+        for (int x = snake[0], y = snake[1]; x < snake[2]; x++, y++)
+        {
+            matches[x] = y;
+        }
+        diff(snake[2], aHi, snake[3], bHi);
+    }
+
+    /**
+     * @return {x, y} start and end of the middle snake, relative to the whole sequences
+     */
+    private int[] middleSnake(int aLo, int aHi, int bLo, int bHi)
+    {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        int offset = max + 1;
+        // furthest x on each diagonal k = x - y, forward from the start and backward from the end
+        int[] forward = new int[2 * max + 3];
+        int[] backward = new int[2 * max + 3];
+
+        for (int d = 0; d <= max; d++)
+        {
+            for (int k = -d; k <= d; k += 2)
+            {
+                int x = (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1]))
+                        ? forward[offset + k + 1] : forward[offset + k - 1] + 1;
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y])
+                {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                int c = delta - k;
+                if (odd && c >= -(d - 1) && c <= d - 1 && x + backward[offset + c] >= n)
+                {
+                    return new int[] {aLo + startX, bLo + startY, aLo + x, bLo + y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2)
+            {
+                int x = (k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1]))
+                        ? backward[offset + k + 1] : backward[offset + k - 1] + 1;
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y])
+                {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+                int c = delta - k;
+                if (!odd && c >= -d && c <= d && x + forward[offset + c] >= n)
+                {
+                    return new int[] {aHi - x, bHi - y, aHi - startX, bHi - startY};
+                }
+            }
+        }
+        throw new IllegalStateException("No middle snake found");
+    }
+}
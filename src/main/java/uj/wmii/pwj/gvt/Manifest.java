@@ -0,0 +1,113 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * SHA-256 digests of the files stored in one version, kept in {@code .gvt/manifests/{version}}
+ * as lines of {@code {hex-digest} {file-name}}. Manifests are immutable; changes produce new instances.
+ */
+class Manifest {
+
+    static final Manifest EMPTY = new Manifest(new TreeMap<>());
+
+    private final SortedMap<String, byte[]> files;
+
+    private Manifest(SortedMap<String, byte[]> files)
+    {
+        this.files = files;
+    }
+
+    static Manifest of(Map<String, byte[]> digests)
+    {
+        return new Manifest(new TreeMap<>(digests));
+    }
+
+    static Manifest read(Path path) throws IOException
+    {
+        SortedMap<String, byte[]> files = new TreeMap<>();
+        for (String line : Files.readAllLines(path))
+        {
+            int separator = line.indexOf(' ');
+            if (separator < 0)
+            {
+                throw new IOException("Corrupted manifest " + path + ": " + line);
+            }
+            try {
+                files.put(line.substring(separator + 1), HexFormat.of().parseHex(line, 0, separator));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupted manifest " + path + ": " + line, e);
+            }
+        }
+        return new Manifest(files);
+    }
+
+    void write(Path path) throws IOException
+    {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.writeString(tmp, content());
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * SHA-256 of the stored form, the same for equal manifests.
+     */
+    byte[] digest()
+    {
+        return HashPipeline.newDigest().digest(content().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String content()
+    {
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, byte[]> entry : files.entrySet())
+        {
+            content.append(HashPipeline.hex(entry.getValue())).append(' ').append(entry.getKey()).append('\n');
+        }
+        return content.toString();
+    }
+
+    Manifest with(String name, byte[] digest)
+    {
+        SortedMap<String, byte[]> changed = new TreeMap<>(files);
+        changed.put(name, digest);
+        return new Manifest(changed);
+    }
+
+    Manifest without(String name)
+    {
+        SortedMap<String, byte[]> changed = new TreeMap<>(files);
+        changed.remove(name);
+        return new Manifest(changed);
+    }
+
+    SortedMap<String, byte[]> files()
+    {
+        return Collections.unmodifiableSortedMap(files);
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        if (!(other instanceof Manifest manifest) || !files.keySet().equals(manifest.files.keySet()))
+        {
+            return false;
+        }
+        for (Map.Entry<String, byte[]> entry : files.entrySet())
+        {
+            if (!Arrays.equals(entry.getValue(), manifest.files.get(entry.getKey())))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return files.keySet().hashCode();
+    }
+}
@@ -0,0 +1,68 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * Which versions survive {@link GvtRepository#prune(RetentionPolicy)}: the last {@code keepLast} versions,
+ * every {@code keepEvery}-th older one (none if 0), and always version 0.
+ * Configured in {@code .gvt/config} with {@code retention.keepLast} and {@code retention.keepEvery}.
+ */
+public record RetentionPolicy(int keepLast, int keepEvery) {
+
+    static final String KEEP_LAST = "retention.keepLast";
+    static final String KEEP_EVERY = "retention.keepEvery";
+
+    public RetentionPolicy
+    {
+        if (keepLast < 1)
+        {
+            throw new IllegalArgumentException("retention.keepLast must be at least 1: " + keepLast);
+        }
+        if (keepEvery < 0)
+        {
+            throw new IllegalArgumentException("retention.keepEvery must not be negative: " + keepEvery);
+        }
+    }
+
+    /**
+     * @return the configured policy, or empty if the config does not define {@code retention.keepLast}
+     * @throws IllegalArgumentException if the configured values are invalid
+     */
+    static Optional<RetentionPolicy> load(Path config) throws IOException
+    {
+        if (!Files.exists(config))
+        {
+            return Optional.empty();
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(config, StandardCharsets.UTF_8))
+        {
+            properties.load(reader);
+        }
+        String keepLast = properties.getProperty(KEEP_LAST);
+        if (keepLast == null)
+        {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(new RetentionPolicy(
+                    Integer.parseInt(keepLast.trim()),
+                    Integer.parseInt(properties.getProperty(KEEP_EVERY, "0").trim())));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Retention values must be integers: " + e.getMessage(), e);
+        }
+    }
+
+    public boolean retains(int version, int lastVersion)
+    {
+        return version == 0
+                || version > lastVersion - keepLast
+                || (keepEvery > 0 && version % keepEvery == 0);
+    }
+}
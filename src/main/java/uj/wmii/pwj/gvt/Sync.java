@@ -0,0 +1,97 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Brings a repository on the local file system up to date with another one. The receiver's last version is the
+ * point both sides agree on, once the sender still has it with the same {@link HistoryChain} value, so the whole
+ * history up to it is the same; that takes one read on each side however long the history is. The versions after
+ * it are streamed as an incremental {@link Bundle} through a pipe, exported on one thread while they are imported
+ * on the other, so nothing is staged on disk but the new contents. Content the receiver's {@link BlobIndex} already
+ * has is not sent, and the receiver's {@code last} moves once all new versions are stored.
+ */
+class Sync {
+
+    private Sync()
+    {
+    }
+
+    /**
+     * @return what was transferred; no versions if the receiver already has the sender's last version
+     * @throws BundleException if the receiver has a version the sender does not or has differently,
+     *                         so it cannot be continued
+     */
+    static BundleInfo transfer(GvtRepository source, GvtRepository target) throws IOException
+    {
+        if (Files.isSameFile(source.catalog(), target.catalog()))
+        {
+            throw new BundleException("Cannot synchronize a repository with itself.");
+        }
+        int base = target.lastVersion();
+        int last = source.lastVersion();
+        if (base > last || !source.hasVersion(base) || !Arrays.equals(source.chain().get(base), target.chain().get(base)))
+        {
+            throw new BundleException("Version " + base + " of " + target.root().toAbsolutePath().normalize()
+                    + " is not in " + source.root().toAbsolutePath().normalize() + ", the repositories have diverged.");
+        }
+        if (base == last)
+        {
+            return new BundleInfo(base, last, 0, 0, 0);
+        }
+
+        Pipe pipe = Pipe.open();
+        // the failure that came first is the cause; the other side then only sees the pipe closed or cut short
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread exporter = new Thread(() -> {
+            try {
+                source.exportBundle(base, target.blobs(), pipe.sink());
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                close(pipe.sink(), failure);
+            }
+        }, "gvt-sync-export");
+        exporter.setDaemon(true);
+        exporter.start();
+
+        BundleInfo info = null;
+        try {
+            info = target.importBundle(pipe.source());
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            // fails a blocked export, so the thread always ends
+            close(pipe.source(), failure);
+        }
+        join(exporter);
+        if (failure.get() != null)
+        {
+            throw failure.get();
+        }
+        return info;
+    }
+
+    private static void close(Channel channel, AtomicReference<IOException> failure)
+    {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private static void join(Thread thread) throws IOException
+    {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the export.", e);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PrimitiveIterator;
+
+/**
+ * Index of version numbers. Versions are dense, from 0 to the number stored in {@code .gvt/last}.
+ * Versions removed later on are marked in an on-disk bitmap ({@code .gvt/pruned}, one bit per version),
+ * so neither listing nor lookups need to read the {@code versions} directory. Bitmap pages are read once and kept
+ * while the bitmap file stays the same one, with the same size and modification time, so a prune by another instance
+ * or process is seen by the next lookup; an iteration sees the bitmap as it was when it started.
+ */
+class VersionIndex {
+
+    private static final int PAGE_SIZE = 512;
+
+    private final Path last;
+    private final Path pruned;
+    private final Map<Long, byte[]> pages = new HashMap<>();
+    private Stamp stamp;
+
+    VersionIndex(Path catalog)
+    {
+        last = catalog.resolve("last");
+        pruned = catalog.resolve("pruned");
+    }
+
+    int lastVersion() throws IOException
+    {
+        return Integer.parseInt(Files.readString(last).trim());
+    }
+
+    /**
+     * Atomically replaces the last version number. This is the point at which a new version becomes visible.
+     */
+    void setLast(int version) throws IOException
+    {
+        Path tmp = last.resolveSibling("last.tmp");
+        Files.writeString(tmp, String.valueOf(version));
+        Files.move(tmp, last, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    boolean contains(int version) throws IOException
+    {
+        return version >= 0 && version <= lastVersion() && !isPruned(version);
+    }
+
+    synchronized boolean isPruned(int version) throws IOException
+    {
+        refresh();
+        return bit(version);
+    }
+
+    private synchronized boolean bit(int version) throws IOException
+    {
+        long offset = version >>> 3;
+        byte[] page = page(offset / PAGE_SIZE);
+        return (page[(int) (offset % PAGE_SIZE)] & (1 << (version & 7))) != 0;
+    }
+
+    /**
+     * Marks versions as pruned. The bitmap is replaced as a whole, so either all of them are marked or none.
+     */
+    synchronized void markPruned(int... versionNumbers) throws IOException
+    {
+        byte[] bitmap = Files.exists(pruned) ? Files.readAllBytes(pruned) : new byte[0];
+        for (int version : versionNumbers)
+        {
+            int offset = version >>> 3;
+            if (offset >= bitmap.length)
+            {
+                bitmap = Arrays.copyOf(bitmap, offset + 1);
+            }
+            bitmap[offset] |= (byte) (1 << (version & 7));
+        }
+        Path tmp = pruned.resolveSibling("pruned.tmp");
+        Files.write(tmp, bitmap);
+        Files.move(tmp, pruned, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        pages.clear();
+    }
+
+    /**
+     * Whether any version above the given one is marked as pruned, which only an interrupted write leaves behind.
+     */
+    synchronized boolean prunedAbove(int version) throws IOException
+    {
+        if (!Files.exists(pruned))
+        {
+            return false;
+        }
+        refresh();
+        long size = Files.size(pruned);
+        for (long v = version + 1L; v < size * 8; v++)
+        {
+            if (bit((int) v))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void clearPrunedAbove(int version) throws IOException
+    {
+        if (!Files.exists(pruned))
+        {
+            return;
+        }
+        long offset = version >>> 3;
+        try (FileChannel channel = FileChannel.open(pruned, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            ByteBuffer cell = ByteBuffer.allocate(1);
+            if (channel.read(cell, offset) == 1)
+            {
+                cell.put(0, (byte) (cell.get(0) & ((2 << (version & 7)) - 1)));
+                cell.clear();
+                channel.write(cell, offset);
+            }
+            channel.truncate(offset + 1);
+        }
+        pages.clear();
+    }
+
+    /**
+     * Existing versions, from the last one down to 0. Reads one bitmap page per {@code 8 * PAGE_SIZE} versions visited.
+     */
+    PrimitiveIterator.OfInt descending() throws IOException
+    {
+        return descending(lastVersion());
+    }
+
+    /**
+     * Existing versions, from {@code from} down to 0.
+     */
+    PrimitiveIterator.OfInt descending(int from)
+    {
+        return new PrimitiveIterator.OfInt() {
+            private int next = seek(from, true);
+
+            private int seek(int version, boolean first)
+            {
+                try {
+                    if (first)
+                    {
+                        refresh();
+                    }
+                    while (version >= 0 && bit(version))
+                    {
+                        version--;
+                    }
+                    return version;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return next >= 0;
+            }
+
+            @Override
+            public int nextInt()
+            {
+                if (next < 0)
+                {
+                    throw new NoSuchElementException();
+                }
+                int current = next;
+                next = seek(current - 1, false);
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Drops the cached pages if the bitmap was replaced or changed since they were read.
+     */
+    private synchronized void refresh() throws IOException
+    {
+        Stamp current;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(pruned, BasicFileAttributes.class);
+            current = new Stamp(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+        } catch (NoSuchFileException e) {
+            current = null;
+        }
+        if (!Objects.equals(current, stamp))
+        {
+            pages.clear();
+            stamp = current;
+        }
+    }
+
+    private record Stamp(Object fileKey, FileTime modified, long size) {
+    }
+
+    private byte[] page(long number) throws IOException
+    {
+        byte[] page = pages.get(number);
+        if (page == null)
+        {
+            page = new byte[PAGE_SIZE];
+            if (Files.exists(pruned))
+            {
+                try (FileChannel channel = FileChannel.open(pruned, StandardOpenOption.READ))
+                {
+                    ByteBuffer buffer = ByteBuffer.wrap(page);
+                    long position = number * PAGE_SIZE;
+                    int read;
+                    do {
+                        read = channel.read(buffer, position + buffer.position());
+                    } while (read > 0 && buffer.hasRemaining());
+                }
+            }
+            pages.put(number, page);
+        }
+        return page;
+    }
+}
@@ -0,0 +1,9 @@
+package uj.wmii.pwj.gvt;
+
+import java.util.List;
+
+/**
+ * Details of a single version: its full message and the names of the files it contains.
+ */
+public record VersionInfo(int version, String message, List<String> files) {
+}
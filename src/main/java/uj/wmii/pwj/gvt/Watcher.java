@@ -0,0 +1,157 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the dirty set of a repository up to date from {@link WatchService} events of the working directory,
+ * so that {@link GvtRepository#status()} and {@link GvtRepository#commitModified(String)} compare only the files
+ * that changed. The set is seeded with a full scan when watching starts; if events were lost (overflow),
+ * a full scan is repeated. Only one watcher can watch a directory at a time, which is guarded by a lock on
+ * {@code .gvt/watch.lock}; the lock disappears with the watcher, even if its process is killed.
+ */
+public class Watcher implements AutoCloseable {
+
+    private static final long BATCH_MILLIS = 50;
+
+    private final GvtRepository repo;
+    private final DirtySet dirty;
+    private final FileLock lock;
+    private final WatchService service;
+    private final Thread thread;
+    private volatile IOException failure;
+
+    Watcher(GvtRepository repo, DirtySet dirty) throws IOException
+    {
+        this.repo = repo;
+        this.dirty = dirty;
+        lock = dirty.lockWatch();
+        if (lock == null)
+        {
+            throw new IOException("Directory is already watched: " + repo.root().toAbsolutePath());
+        }
+
+        try {
+            service = repo.root().getFileSystem().newWatchService();
+            // registered before the scan, so changes made during the scan are not lost
+            repo.root().toAbsolutePath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            int lastVersion = repo.lastVersion();
+            dirty.replace(lastVersion, changedFiles(lastVersion));
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+
+        thread = new Thread(this::run, "gvt-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits until the watcher is closed or fails.
+     *
+     * @throws IOException the failure that stopped the watcher
+     */
+    public void awaitTermination() throws IOException, InterruptedException
+    {
+        thread.join();
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    public boolean isRunning()
+    {
+        return thread.isAlive();
+    }
+
+    private void run()
+    {
+        try {
+            while (true)
+            {
+                WatchKey key = service.take();
+                Set<String> changed = new TreeSet<>();
+                boolean overflow = false;
+                // events of one save often arrive in a burst; collect them into a single update
+                while (key != null)
+                {
+                    for (WatchEvent<?> event : key.pollEvents())
+                    {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        {
+                            overflow = true;
+                        }
+                        else if (event.context() instanceof Path path && !".gvt".equals(path.toString()))
+                        {
+                            changed.add(path.toString());
+                        }
+                    }
+                    if (!key.reset())
+                    {
+                        throw new IOException("Working directory is no longer accessible: " + repo.root().toAbsolutePath());
+                    }
+                    key = service.poll(BATCH_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (overflow)
+                {
+                    int lastVersion = repo.lastVersion();
+                    changed.addAll(changedFiles(lastVersion));
+                    dirty.rebase(lastVersion, changed);
+                }
+                else
+                {
+                    dirty.add(changed);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            release();
+        }
+    }
+
+    private List<String> changedFiles(int lastVersion) throws IOException
+    {
+        List<String> names = new ArrayList<>();
+        for (FileStatus status : repo.status(lastVersion, null))
+        {
+            names.add(status.file());
+        }
+        return names;
+    }
+
+    private void release()
+    {
+        try {
+            if (service != null)
+            {
+                service.close();
+            }
+            dirty.unlockWatch(lock);
+        } catch (IOException ignored) {
+
+        }
+    }
+
+    /**
+     * Stops watching. The dirty set stops being used once the lock is released.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        service.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlobCacheTest {
+
+    @TempDir
+    Path dir;
+
+    private Path blob(String name, int size) throws IOException {
+        return Files.write(dir.resolve(name), new byte[size]);
+    }
+
+    @Test
+    void servesRepeatedCopiesFromMemory() throws IOException {
+        BlobCache cache = new BlobCache(100);
+        Path a = Files.writeString(dir.resolve("a"), "content of a");
+
+        cache.copy(a, dir.resolve("out1"));
+        cache.copy(a, dir.resolve("out2"));
+
+        assertThat(Files.readString(dir.resolve("out2"))).isEqualTo("content of a");
+        assertThat(cache.misses()).isEqualTo(1);
+        assertThat(cache.hits()).isEqualTo(1);
+        assertThat(cache.size()).isEqualTo(12);
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedBeyondBudget() throws IOException {
+        BlobCache cache = new BlobCache(100);
+        Path a = blob("a", 40);
+        Path b = blob("b", 40);
+        Path c = blob("c", 40);
+
+        cache.get(a);
+        cache.get(b);
+        cache.get(a);
+        cache.get(c);
+
+        assertThat(cache.evictions()).isEqualTo(1);
+        assertThat(cache.entries()).isEqualTo(2);
+        cache.get(a);
+        assertThat(cache.hits()).isEqualTo(2);
+    }
+
+    @Test
+    void doesNotCacheBlobsLargerThanBudget() throws IOException {
+        BlobCache cache = new BlobCache(10);
+        Path big = blob("big", 11);
+
+        cache.copy(big, dir.resolve("out"));
+
+        assertThat(Files.size(dir.resolve("out"))).isEqualTo(11);
+        assertThat(cache.entries()).isZero();
+    }
+}
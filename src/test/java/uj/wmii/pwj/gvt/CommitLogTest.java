@@ -0,0 +1,37 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommitLogTest {
+
+    @TempDir
+    Path catalog;
+
+    @Test
+    void readsFirstLinesNewestFirst() throws IOException {
+        CommitLog log = new CommitLog(catalog);
+        log.append(0, "GVT initialized.");
+        log.append(1, "Za\u017c\u00f3\u0142\u0107\r\nsecond line\n\n" + "x".repeat(10_000));
+        log.append(2, "");
+
+        CommitLog.Batch batch = log.readBefore(log.end(), 2);
+        assertThat(batch.entries()).containsExactly(new HistoryEntry(2, ""), new HistoryEntry(1, "Za\u017c\u00f3\u0142\u0107"));
+
+        CommitLog.Batch rest = log.readBefore(batch.end(), 10);
+        assertThat(rest.entries()).containsExactly(new HistoryEntry(0, "GVT initialized."));
+        assertThat(rest.end()).isZero();
+    }
+
+    @Test
+    void missingLogIsEmpty() throws IOException {
+        CommitLog log = new CommitLog(catalog);
+        assertThat(log.exists()).isFalse();
+        assertThat(log.readBefore(log.end(), 10).entries()).isEmpty();
+    }
+}
@@ -0,0 +1,64 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DirtySetTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void committedKeepsFilesEditedAfterTheCopy() throws IOException {
+        DirtySet dirty = new DirtySet(root, Files.createDirectories(root.resolve(".gvt")));
+        Files.writeString(root.resolve("a.txt"), "stored");
+        Files.writeString(root.resolve("b.txt"), "edited after the copy");
+        dirty.replace(3, List.of("a.txt", "b.txt", "c.txt", "d.txt"));
+
+        byte[] stored = HashPipeline.hashFile(root.resolve("a.txt"));
+        Map<String, byte[]> committed = new HashMap<>(Map.of("a.txt", stored, "b.txt", stored));
+        committed.put("c.txt", null);
+        dirty.committed(4, committed);
+
+        assertThat(dirty.read(4)).contains(Set.of("b.txt", "d.txt"));
+        dirty.committed(6, Collections.singletonMap("d.txt", null));
+        assertThat(dirty.read(4)).contains(Set.of("b.txt", "d.txt"));
+    }
+
+    @Test
+    void probingDoesNotReleaseTheWatchLock() throws Exception {
+        GvtRepository repo = GvtRepository.open(root);
+        repo.init();
+
+        try (Watcher watcher = repo.watch()) {
+            assertThat(repo.isWatched()).isTrue();
+            assertThatThrownBy(repo::watch).isInstanceOf(IOException.class);
+
+            // the lock must still be held for other processes
+            Process other = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), Gvt.class.getName(), "watch")
+                    .directory(root.toFile()).redirectErrorStream(true).start();
+            boolean exited = other.waitFor(30, TimeUnit.SECONDS);
+            if (!exited) {
+                other.destroyForcibly();
+            }
+            assertThat(exited).isTrue();
+            assertThat(other.exitValue()).isEqualTo(100);
+            assertThat(watcher.isRunning()).isTrue();
+        }
+        assertThat(repo.isWatched()).isFalse();
+    }
+}
@@ -0,0 +1,483 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class GvtRepositoryTest {
+
+    @TempDir
+    Path root;
+
+    private GvtRepository repo;
+
+    @BeforeEach
+    void initializeRepo() throws IOException {
+        repo = GvtRepository.open(root);
+        assertThat(repo.isInitialized()).isFalse();
+        assertThat(repo.init()).isTrue();
+        assertThat(repo.isInitialized()).isTrue();
+    }
+
+    @Test
+    void secondInitIsRejected() throws IOException {
+        assertThat(repo.init()).isFalse();
+    }
+
+    @Test
+    void addAndCommitReturnTypedResults() throws IOException {
+        assertThat(repo.add("a.txt", null).status()).isEqualTo(CommitResult.Status.FILE_NOT_FOUND);
+
+        Files.writeString(root.resolve("a.txt"), "first");
+        assertThat(repo.add("a.txt", null)).isEqualTo(new CommitResult(CommitResult.Status.CREATED, "a.txt", 1));
+        assertThat(repo.add("a.txt", null).status()).isEqualTo(CommitResult.Status.ALREADY_ADDED);
+
+        Files.writeString(root.resolve("a.txt"), "second");
+        assertThat(repo.status()).containsExactly(new FileStatus("a.txt", FileStatus.Change.MODIFIED));
+        assertThat(repo.commit("a.txt", "Second\nbody").version()).isEqualTo(2);
+        assertThat(repo.status()).isEmpty();
+
+        assertThat(repo.version(2)).contains(new VersionInfo(2, "Second\nbody", List.of("a.txt")));
+        assertThat(repo.version(3)).isEmpty();
+    }
+
+    @Test
+    void statusComparesContentNotTimestamps() throws IOException {
+        for (String name : List.of("a.txt", "b.txt", "c.txt", "d.txt")) {
+            Files.writeString(root.resolve(name), "content of " + name);
+            repo.add(name, null);
+        }
+
+        Files.writeString(root.resolve("a.txt"), "content of a.txt");
+        Files.writeString(root.resolve("b.txt"), "CONTENT of b.txt");
+        Files.writeString(root.resolve("c.txt"), "longer content of c.txt");
+        Files.delete(root.resolve("d.txt"));
+
+        assertThat(repo.status()).containsExactly(
+                new FileStatus("b.txt", FileStatus.Change.MODIFIED),
+                new FileStatus("c.txt", FileStatus.Change.MODIFIED),
+                new FileStatus("d.txt", FileStatus.Change.DELETED));
+    }
+
+    @Test
+    void historyIsStreamedNewestFirst() throws IOException {
+        Files.writeString(root.resolve("a.txt"), "a");
+        repo.add("a.txt", null);
+        repo.detach("a.txt", "Detached\nwith details");
+
+        List<HistoryEntry> entries = new ArrayList<>();
+        repo.history().forEachRemaining(entries::add);
+        assertThat(entries).containsExactly(
+                new HistoryEntry(2, "Detached"),
+                new HistoryEntry(1, "File added successfully. File: a.txt"),
+                new HistoryEntry(0, "GVT initialized."));
+    }
+
+    @Test
+    void checkoutRestoresContent() throws IOException {
+        Path file = root.resolve("a.txt");
+        Files.writeString(file, "old");
+        repo.add("a.txt", null);
+        Files.writeString(file, "new");
+        repo.commit("a.txt", null);
+
+        assertThat(repo.checkout(1)).isTrue();
+        assertThat(Files.readString(file)).isEqualTo("old");
+        assertThat(repo.activeVersion()).isEqualTo(1);
+        assertThat(repo.checkout(7)).isFalse();
+    }
+
+    @Test
+    void pruneSquashesVersionsOutsideRetentionPolicy() throws IOException {
+        Path file = root.resolve("a.txt");
+        Files.writeString(file, "1");
+        repo.add("a.txt", null);
+        for (int i = 2; i <= 8; i++) {
+            Files.writeString(file, String.valueOf(i));
+            repo.commit("a.txt", "Commit " + i);
+        }
+
+        assertThat(repo.prune(new RetentionPolicy(2, 4))).isEqualTo(5);
+
+        List<Integer> versions = new ArrayList<>();
+        repo.history().forEachRemaining(entry -> versions.add(entry.version()));
+        assertThat(versions).containsExactly(8, 7, 4, 0);
+        assertThat(repo.version(4).orElseThrow().message())
+                .isEqualTo("Commit 4\n\nSquashed version 3:\nCommit 3\n\nSquashed version 2:\nCommit 2"
+                        + "\n\nSquashed version 1:\nFile added successfully. File: a.txt");
+        assertThat(repo.version(5)).isEmpty();
+        assertThat(repo.checkout(6)).isFalse();
+        assertThat(repo.checkout(4)).isTrue();
+        assertThat(Files.readString(file)).isEqualTo("4");
+        assertThat(repo.prune(new RetentionPolicy(2, 4))).isZero();
+    }
+
+    @Test
+    void interruptedPruneIsDiscardedOrCompleted() throws IOException {
+        Path file = root.resolve("a.txt");
+        Files.writeString(file, "1");
+        repo.add("a.txt", null);
+        for (int i = 2; i <= 4; i++) {
+            Files.writeString(file, String.valueOf(i));
+            repo.commit("a.txt", "Commit " + i);
+        }
+        Path staging = Files.createDirectories(root.resolve(".gvt/prune"));
+
+        // staged before the squashed versions were marked: discarded, the next prune merges once
+        Files.writeString(staging.resolve("3.2"), "Commit 3\n\nSquashed version 2:\nCommit 2");
+        assertThat(repo.prune(new RetentionPolicy(1, 3))).isEqualTo(2);
+        assertThat(repo.version(3).orElseThrow().message()).isEqualTo("Commit 3\n\nSquashed version 2:\nCommit 2"
+                + "\n\nSquashed version 1:\nFile added successfully. File: a.txt");
+        assertThat(staging).doesNotExist();
+
+        // interrupted after marking: the staged message is moved into place and the log rebuilt
+        Files.createDirectories(staging);
+        Files.writeString(staging.resolve("4.3"), "Commit 4 with 3");
+        repo.index().markPruned(3);
+        assertThat(repo.prune(new RetentionPolicy(1, 0))).isZero();
+        assertThat(repo.history().next()).isEqualTo(new HistoryEntry(4, "Commit 4 with 3"));
+        assertThat(repo.version(3)).isEmpty();
+        assertThat(root.resolve(".gvt/versions/3")).doesNotExist();
+
+        // interrupted after the messages were moved into place: the removed version and active are still fixed up
+        for (int i = 5; i <= 6; i++) {
+            Files.writeString(file, String.valueOf(i));
+            repo.commit("a.txt", "Commit " + i);
+        }
+        repo.checkout(5);
+        Files.createDirectories(staging);
+        Files.writeString(root.resolve(".gvt/versions/6/description.txt"), "Commit 6 with 5");
+        repo.index().markPruned(5);
+        assertThat(repo.prune(new RetentionPolicy(10, 0))).isZero();
+        assertThat(repo.activeVersion()).isEqualTo(6);
+        assertThat(repo.history().next()).isEqualTo(new HistoryEntry(6, "Commit 6 with 5"));
+        assertThat(root.resolve(".gvt/versions/5")).doesNotExist();
+        assertThat(staging).doesNotExist();
+    }
+
+    @Test
+    void pruneByAnotherInstanceIsSeen() throws IOException {
+        Path file = root.resolve("a.txt");
+        Files.writeString(file, "1");
+        repo.add("a.txt", null);
+        for (int i = 2; i <= 3; i++) {
+            Files.writeString(file, String.valueOf(i));
+            repo.commit("a.txt", "Commit " + i);
+        }
+        assertThat(repo.hasVersion(2)).isTrue();
+
+        assertThat(GvtRepository.open(root).prune(new RetentionPolicy(1, 0))).isEqualTo(2);
+        assertThat(repo.hasVersion(2)).isFalse();
+        assertThat(repo.version(2)).isEmpty();
+        assertThat(repo.checkout(2)).isFalse();
+    }
+
+    @Test
+    void bundleRoundTripCopiesOnlyNewContent(@TempDir Path clone) throws IOException {
+        Files.writeString(root.resolve("a.txt"), "shared");
+        repo.add("a.txt", null);
+        Path full = root.resolve("full.bundle");
+        assertThat(repo.exportBundle(0, full)).isEqualTo(new BundleInfo(0, 1, 1, 1, 6));
+
+        GvtRepository other = GvtRepository.open(clone);
+        other.init();
+        other.importBundle(full);
+        assertThat(other.lastVersion()).isEqualTo(1);
+        assertThat(other.version(1)).isEqualTo(repo.version(1));
+
+        Files.writeString(root.resolve("b.txt"), "shared");
+        repo.add("b.txt", "Same content as a.txt");
+        Path incremental = root.resolve("incremental.bundle");
+        assertThat(repo.exportBundle(1, incremental).blobs()).isZero();
+        other.importBundle(incremental);
+        assertThat(other.checkout(2)).isTrue();
+        assertThat(Files.readString(clone.resolve("b.txt"))).isEqualTo("shared");
+
+        assertThatThrownBy(() -> other.importBundle(incremental))
+                .isInstanceOf(BundleException.class)
+                .hasMessageContaining("last version is 2");
+    }
+
+    @Test
+    void fsckReportsDamageAndRepairsInterruptedWrites() throws IOException {
+        Files.writeString(root.resolve("a.txt"), "a");
+        repo.add("a.txt", null);
+        assertThat(repo.fsck(false, null).problems()).isEmpty();
+
+        Files.writeString(root.resolve(".gvt/versions/1/a.txt"), "damaged");
+        Files.createDirectories(root.resolve(".gvt/versions/2"));
+        Files.createDirectories(root.resolve(".gvt/versions/tmp"));
+
+        FsckReport report = repo.fsck(true, null);
+        assertThat(report.problems()).containsExactlyInAnyOrder(
+                "Content of versions/1/a.txt does not match its checksum.",
+                "Version directory 2 is not part of history (interrupted write).",
+                "Unexpected entry in versions: tmp");
+        assertThat(report.repaired()).hasSize(2);
+        assertThat(report.findings()).filteredOn(problem -> !problem.repaired())
+                .extracting(FsckReport.Problem::description)
+                .containsExactly("Content of versions/1/a.txt does not match its checksum.");
+        assertThat(report.consistent()).isFalse();
+        assertThat(Files.exists(root.resolve(".gvt/versions/2"))).isFalse();
+        assertThat(repo.fsck(false, null).problems()).hasSize(1);
+    }
+
+    @Test
+    void fsckIsConsistentWhenEveryProblemWasRepaired() throws IOException {
+        Files.writeString(root.resolve("a.txt"), "a");
+        repo.add("a.txt", null);
+        Files.writeString(root.resolve(".gvt/last.tmp"), "2");
+        Files.createDirectories(root.resolve(".gvt/versions/2"));
+
+        FsckReport check = repo.fsck(false, null);
+        assertThat(check.problems()).hasSize(2);
+        assertThat(check.consistent()).isFalse();
+
+        FsckReport report = repo.fsck(true, null);
+        assertThat(report.findings()).hasSize(2).allMatch(FsckReport.Problem::repaired);
+        assertThat(report.consistent()).isTrue();
+        assertThat(repo.fsck(false, null).findings()).isEmpty();
+    }
+
+    @Test
+    void failedImportLeavesNoVersionsBehind(@TempDir Path clone) throws IOException {
+        Files.writeString(root.resolve("a.txt"), "a");
+        repo.add("a.txt", null);
+        Files.writeString(root.resolve("b.txt"), "b");
+        repo.add("b.txt", null);
+        Path full = root.resolve("full.bundle");
+        repo.exportBundle(0, full);
+        byte[] bundle = Files.readAllBytes(full);
+
+        GvtRepository other = GvtRepository.open(clone);
+        other.init();
+        Path truncated = Files.write(root.resolve("truncated.bundle"), Arrays.copyOf(bundle, bundle.length - 10));
+        assertThatThrownBy(() -> other.importBundle(truncated))
+                .isInstanceOf(BundleException.class)
+                .hasMessageContaining("Truncated");
+        assertThat(clone.resolve(".gvt/versions/1")).doesNotExist();
+        assertThat(clone.resolve(".gvt/versions/2")).doesNotExist();
+        assertThat(clone.resolve(".gvt/manifests/1")).doesNotExist();
+
+        // the content of a.txt is the first blob, right after the header, the chain value and the empty version 0
+        bundle[8 + 4 + 4 + HistoryChain.LENGTH + 4 + 4 + 32 + 8] ^= 1;
+        Path corrupted = Files.write(root.resolve("corrupted.bundle"), bundle);
+        assertThatThrownBy(() -> other.importBundle(corrupted))
+                .isInstanceOf(BundleException.class)
+                .hasMessageContaining("checksum");
+
+        Files.writeString(clone.resolve("z.txt"), "z");
+        other.add("z.txt", null);
+        assertThat(other.version(1).orElseThrow().files()).containsExactly("z.txt");
+        assertThat(other.fsck(false, null).problems()).isEmpty();
+        assertThat(other.history().next()).isEqualTo(new HistoryEntry(1, "File added successfully. File: z.txt"));
+    }
+
+    @Test
+    void newVersionIgnoresLeftoversOfInterruptedWrite() throws IOException {
+        Files.createDirectories(root.resolve(".gvt/versions/1"));
+        Files.writeString(root.resolve(".gvt/versions/1/stale.txt"), "stale");
+        Files.writeString(root.resolve("a.txt"), "a");
+        repo.add("a.txt", null);
+
+        assertThat(repo.version(1).orElseThrow().files()).containsExactly("a.txt");
+        assertThat(repo.checkout(1)).isTrue();
+        assertThat(root.resolve("stale.txt")).doesNotExist();
+    }
+
+    @Test
+    void watcherTracksChangesForStatusAndCommit() throws Exception {
+        for (String name : List.of("a.txt", "b.txt", "c.txt")) {
+            Files.writeString(root.resolve(name), name);
+            repo.add(name, null);
+        }
+        Files.writeString(root.resolve("a.txt"), "changed before watching");
+
+        try (Watcher watcher = repo.watch()) {
+            assertThat(repo.isWatched()).isTrue();
+            assertThatThrownBy(repo::watch).isInstanceOf(IOException.class);
+            assertThat(repo.status()).containsExactly(new FileStatus("a.txt", FileStatus.Change.MODIFIED));
+
+            Files.writeString(root.resolve("c.txt"), "changed while watching");
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (repo.status().size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+
+            List<CommitResult> results = repo.commitModified(null);
+            assertThat(results).extracting(CommitResult::file).containsExactly("a.txt", "c.txt");
+            assertThat(results).extracting(CommitResult::version).containsOnly(4);
+            assertThat(repo.status()).isEmpty();
+            assertThat(repo.commitModified(null)).isEmpty();
+            assertThat(watcher.isRunning()).isTrue();
+        }
+        assertThat(repo.isWatched()).isFalse();
+        assertThat(repo.version(4).orElseThrow().message()).isEqualTo("Files committed successfully. Files: a.txt, c.txt");
+    }
+
+    @Test
+    void blameOfLargeOrBinaryFilesIsBuiltOnDemand() throws IOException {
+        Path big = root.resolve("big.txt");
+        Files.writeString(big, "line\n".repeat((int) (Blame.MAX_TRACKED_SIZE / 5 + 1)));
+        repo.add("big.txt", null);
+        Path binary = root.resolve("data.bin");
+        Files.write(binary, new byte[] {'a', 0, '\n', (byte) 0xff, '\n'});
+        repo.add("data.bin", null);
+        Files.write(binary, new byte[] {'a', 0, '\n', 'b', '\n'});
+        assertThat(repo.commit("data.bin", null).version()).isEqualTo(3);
+
+        assertThat(root.resolve(".gvt/blame/big.txt")).doesNotExist();
+        assertThat(root.resolve(".gvt/blame/data.bin")).doesNotExist();
+        assertThat(repo.blame("data.bin").orElseThrow()).extracting(BlameLine::version).containsExactly(2, 3);
+        assertThat(repo.blame("big.txt").orElseThrow()).hasSize((int) (Blame.MAX_TRACKED_SIZE / 5 + 1));
+    }
+
+    @Test
+    void pushAndPullTransferOnlyMissingVersions(@TempDir Path clone) throws IOException {
+        Files.writeString(root.resolve("a.txt"), "shared");
+        repo.add("a.txt", null);
+        GvtRepository other = GvtRepository.open(clone);
+        other.init();
+
+        assertThat(repo.push(other)).isEqualTo(new BundleInfo(0, 1, 1, 1, 6));
+        assertThat(other.version(1)).isEqualTo(repo.version(1));
+        assertThat(other.pull(repo)).isEqualTo(new BundleInfo(1, 1, 0, 0, 0));
+
+        Files.writeString(root.resolve("b.txt"), "shared");
+        repo.add("b.txt", null);
+        assertThat(other.pull(repo).blobs()).isZero();
+        assertThat(other.lastVersion()).isEqualTo(2);
+
+        Files.writeString(clone.resolve("c.txt"), "diverged");
+        other.add("c.txt", null);
+        Files.writeString(root.resolve("c.txt"), "local");
+        repo.add("c.txt", null);
+        assertThatThrownBy(() -> repo.push(other))
+                .isInstanceOf(BundleException.class)
+                .hasMessageContaining("diverged");
+        assertThat(Files.readString(clone.resolve(".gvt/versions/3/c.txt"))).isEqualTo("diverged");
+    }
+
+    @Test
+    void pullRefusesUnrelatedHistoryWithTheSameFiles(@TempDir Path other) throws IOException {
+        Files.writeString(root.resolve("a.txt"), "vendor");
+        repo.add("a.txt", "A: import vendor copy");
+        Files.writeString(root.resolve("b.txt"), "more");
+        repo.add("b.txt", null);
+        GvtRepository unrelated = GvtRepository.open(other);
+        unrelated.init();
+        Files.writeString(other.resolve("a.txt"), "vendor");
+        unrelated.add("a.txt", "B: unrelated work");
+
+        assertThatThrownBy(() -> unrelated.pull(repo))
+                .isInstanceOf(BundleException.class)
+                .hasMessageContaining("Version 1 ")
+                .hasMessageContaining("diverged");
+        assertThat(unrelated.lastVersion()).isEqualTo(1);
+    }
+
+    @Test
+    void pullSkipsContentInOlderVersionsOfTheReceiver(@TempDir Path clone) throws IOException {
+        Path file = root.resolve("a.txt");
+        Files.writeString(file, "first");
+        repo.add("a.txt", null);
+        Files.writeString(file, "second");
+        repo.commit("a.txt", null);
+        GvtRepository other = GvtRepository.open(clone);
+        other.init();
+        other.pull(repo);
+
+        Files.writeString(file, "first");
+        repo.commit("a.txt", null);
+        assertThat(other.pull(repo)).isEqualTo(new BundleInfo(2, 3, 1, 0, 0));
+        assertThat(Files.readString(clone.resolve(".gvt/versions/3/a.txt"))).isEqualTo("first");
+    }
+
+    @Test
+    void pullContinuesAfterPruneOnEitherSide(@TempDir Path clone) throws IOException {
+        Path file = root.resolve("a.txt");
+        Files.writeString(file, "shared");
+        repo.add("a.txt", null);
+        Files.writeString(root.resolve("b.txt"), "shared");
+        repo.add("b.txt", null);
+        Files.writeString(root.resolve("b.txt"), "b");
+        repo.commit("b.txt", null);
+        Files.writeString(file, "a");
+        repo.commit("a.txt", null);
+        GvtRepository other = GvtRepository.open(clone);
+        other.init();
+        other.pull(repo);
+
+        // squashing grows the description of the retained version, but not its place in the history
+        repo.prune(new RetentionPolicy(1, 0));
+        Files.writeString(root.resolve("c.txt"), "c");
+        repo.add("c.txt", null);
+        assertThat(other.pull(repo).last()).isEqualTo(5);
+
+        // version 1 stored the shared content first; it is still found in version 3 once 1 is gone
+        other.prune(new RetentionPolicy(4, 0));
+        assertThat(clone.resolve(".gvt/versions/1")).doesNotExist();
+        Files.writeString(file, "shared");
+        repo.commit("a.txt", null);
+        assertThat(other.pull(repo)).isEqualTo(new BundleInfo(5, 6, 1, 0, 0));
+        assertThat(other.fsck(false, null).problems()).isEmpty();
+    }
+
+    @Test
+    void repositoriesFromBeforeTheChainGetItOnFirstPull(@TempDir Path clone) throws IOException {
+        Path file = root.resolve("a.txt");
+        Files.writeString(file, "first");
+        repo.add("a.txt", null);
+        Files.writeString(file, "second");
+        repo.commit("a.txt", null);
+        GvtRepository other = GvtRepository.open(clone);
+        other.init();
+        other.pull(repo);
+        for (Path catalog : List.of(root.resolve(".gvt"), clone.resolve(".gvt"))) {
+            Files.delete(catalog.resolve("chain"));
+            try (Stream<Path> entries = Files.list(catalog.resolve("blobs"))) {
+                for (Path entry : entries.toList()) {
+                    Files.delete(entry);
+                }
+            }
+            Files.delete(catalog.resolve("blobs"));
+        }
+
+        Files.writeString(file, "first");
+        GvtRepository.open(root).commit("a.txt", null);
+        assertThat(GvtRepository.open(clone).pull(GvtRepository.open(root))).isEqualTo(new BundleInfo(2, 3, 1, 0, 0));
+        assertThat(Files.size(clone.resolve(".gvt/chain"))).isEqualTo(4 * HistoryChain.LENGTH);
+    }
+
+    @Test
+    void blameFollowsLinesThroughCommitsAndPrune() throws IOException {
+        Path file = root.resolve("a.txt");
+        Files.writeString(file, "one\ntwo\nthree\n");
+        repo.add("a.txt", null);
+        Files.writeString(file, "one\nTWO\nthree\n");
+        repo.commit("a.txt", null);
+        Files.writeString(file, "zero\none\nTWO\nthree\n");
+        repo.commit("a.txt", null);
+
+        List<BlameLine> cached = repo.blame("a.txt").orElseThrow();
+        assertThat(cached).containsExactly(new BlameLine(3, "zero"), new BlameLine(1, "one"),
+                new BlameLine(2, "TWO"), new BlameLine(1, "three"));
+        Files.delete(root.resolve(".gvt/blame/a.txt"));
+        assertThat(repo.blame("a.txt")).contains(cached);
+        assertThat(repo.blame("missing.txt")).isEmpty();
+
+        repo.prune(new RetentionPolicy(1, 0));
+        assertThat(repo.blame("a.txt").orElseThrow()).extracting(BlameLine::version).containsOnly(3);
+    }
+}
@@ -0,0 +1,113 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class HashPipelineTest {
+
+    @TempDir
+    Path dir;
+
+    private Path file(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return Files.write(dir.resolve(name), content);
+    }
+
+    private static byte[] sha256(Path file) throws IOException, NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file));
+    }
+
+    private static Set<Thread> readerThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("gvt-hash-reader"))
+                .collect(Collectors.toSet());
+    }
+
+    @Test
+    void digestsMatchMessageDigest() throws Exception {
+        List<Path> files = List.of(
+                file("empty", 0),
+                file("one-chunk", HashPipeline.CHUNK_SIZE),
+                file("chunks", 5 * HashPipeline.CHUNK_SIZE + 17),
+                file("large", 40 * HashPipeline.CHUNK_SIZE + 1));
+
+        try (HashPipeline pipeline = new HashPipeline(2)) {
+            Map<Path, byte[]> digests = pipeline.hashAll(files);
+
+            assertThat(digests).hasSize(files.size());
+            for (Path file : files) {
+                assertThat(digests.get(file)).as(file.getFileName().toString()).isEqualTo(sha256(file));
+                assertThat(HashPipeline.hashFile(file)).isEqualTo(sha256(file));
+            }
+            assertThat(pipeline.hashedFiles()).isEqualTo(files.size());
+            assertThat(pipeline.availableBuffers()).isEqualTo(4);
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    void missingFileFailsAndReturnsBuffers() throws IOException {
+        List<Path> files = List.of(file("before", 3 * HashPipeline.CHUNK_SIZE), dir.resolve("missing"),
+                file("after", 3 * HashPipeline.CHUNK_SIZE));
+
+        try (HashPipeline pipeline = new HashPipeline(2)) {
+            assertThatThrownBy(() -> pipeline.hashAll(files)).isInstanceOf(NoSuchFileException.class);
+            assertThat(pipeline.availableBuffers()).isEqualTo(4);
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    void unreadableFileFailsAndReturnsBuffers() throws IOException {
+        // a directory opens as a channel, but fails on the first read
+        Path unreadable = Files.createDirectory(dir.resolve("unreadable"));
+        List<Path> files = List.of(file("a", 2 * HashPipeline.CHUNK_SIZE), unreadable);
+
+        try (HashPipeline pipeline = new HashPipeline(1)) {
+            assertThatThrownBy(() -> pipeline.hashAll(files)).isInstanceOf(IOException.class);
+            assertThat(pipeline.availableBuffers()).isEqualTo(2);
+
+            // the pipeline stays usable after a failure
+            assertThat(pipeline.hashAll(List.of(files.get(0))).get(files.get(0))).isEqualTo(HashPipeline.hashFile(files.get(0)));
+        }
+    }
+
+    @Test
+    void reuseStartsNoNewThreads() throws IOException {
+        Path file = file("a", 2 * HashPipeline.CHUNK_SIZE);
+
+        try (HashPipeline pipeline = new HashPipeline(2)) {
+            Set<Thread> before = readerThreads();
+            assertThat(pipeline.hashAll(List.of())).isEmpty();
+            pipeline.hashEach(Stream.empty(), (path, digest, error) -> {
+                throw new AssertionError(path);
+            });
+            assertThat(readerThreads()).isSubsetOf(before);
+
+            pipeline.hashAll(List.of(file));
+            Set<Thread> started = readerThreads();
+            for (int i = 0; i < 20; i++) {
+                assertThat(pipeline.hashAll(List.of(file))).containsKey(file);
+            }
+            assertThat(readerThreads()).isSubsetOf(started);
+        }
+    }
+}
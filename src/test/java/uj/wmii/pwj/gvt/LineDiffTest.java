@@ -0,0 +1,68 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LineDiffTest {
+
+    @Test
+    void matchesUnchangedLinesAroundEdits() {
+        int[] matches = LineDiff.match(List.of("a", "b", "c", "d"), List.of("a", "x", "c", "d", "e"));
+        assertThat(matches).containsExactly(0, -1, 2, 3);
+    }
+
+    @Test
+    void handlesEmptySidesAndFullRewrites() {
+        assertThat(LineDiff.match(List.of(), List.of("a"))).isEmpty();
+        assertThat(LineDiff.match(List.of("a", "b"), List.of())).containsExactly(-1, -1);
+        assertThat(LineDiff.match(List.of("a", "b"), List.of("c", "d"))).containsExactly(-1, -1);
+    }
+
+    @Test
+    void findsLongestCommonSubsequence() {
+        Random random = new Random(1);
+        for (int round = 0; round < 2000; round++) {
+            List<String> before = randomLines(random);
+            List<String> after = randomLines(random);
+            int[] matches = LineDiff.match(before, after);
+
+            int matched = 0;
+            int previous = -1;
+            for (int i = 0; i < matches.length; i++) {
+                if (matches[i] >= 0) {
+                    assertThat(matches[i]).isGreaterThan(previous);
+                    assertThat(after.get(matches[i])).isEqualTo(before.get(i));
+                    previous = matches[i];
+                    matched++;
+                }
+            }
+            assertThat(matched).isEqualTo(lcs(before, after));
+        }
+    }
+
+    private static List<String> randomLines(Random random) {
+        List<String> lines = new ArrayList<>();
+        int count = random.nextInt(15);
+        for (int i = 0; i < count; i++) {
+            lines.add(String.valueOf(random.nextInt(4)));
+        }
+        return lines;
+    }
+
+    private static int lcs(List<String> a, List<String> b) {
+        int[][] lengths = new int[a.size() + 1][b.size() + 1];
+        for (int i = a.size() - 1; i >= 0; i--) {
+            for (int j = b.size() - 1; j >= 0; j--) {
+                lengths[i][j] = a.get(i).equals(b.get(j))
+                        ? lengths[i + 1][j + 1] + 1
+                        : Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+            }
+        }
+        return lengths[0][0];
+    }
+}
@@ -0,0 +1,72 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PrimitiveIterator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VersionIndexTest {
+
+    @TempDir
+    Path catalog;
+
+    private VersionIndex index;
+
+    @BeforeEach
+    void prepareIndex() throws IOException {
+        Files.writeString(catalog.resolve("last"), "0");
+        index = new VersionIndex(catalog);
+    }
+
+    private List<Integer> listAll() throws IOException {
+        List<Integer> result = new ArrayList<>();
+        PrimitiveIterator.OfInt it = index.descending();
+        while (it.hasNext()) {
+            result.add(it.nextInt());
+        }
+        return result;
+    }
+
+    @Test
+    void listsDenseVersionsFromLast() throws IOException {
+        index.setLast(3);
+        assertThat(index.lastVersion()).isEqualTo(3);
+        assertThat(listAll()).containsExactly(3, 2, 1, 0);
+        assertThat(Files.exists(catalog.resolve("pruned"))).isFalse();
+    }
+
+    @Test
+    void skipsPrunedVersions() throws IOException {
+        index.setLast(9000);
+        index.markPruned(8999, 4, 5);
+        assertThat(index.contains(8999)).isFalse();
+        assertThat(index.contains(9000)).isTrue();
+        assertThat(index.contains(9001)).isFalse();
+        assertThat(index.contains(-1)).isFalse();
+        assertThat(listAll()).hasSize(8998).startsWith(9000, 8998).endsWith(6, 3, 2, 1, 0);
+    }
+
+    @Test
+    void seesChangesMadeByAnotherInstance() throws IOException {
+        index.setLast(10);
+        assertThat(index.contains(2)).isTrue();
+
+        VersionIndex other = new VersionIndex(catalog);
+        other.markPruned(2);
+        assertThat(index.contains(2)).isFalse();
+        assertThat(listAll()).doesNotContain(2);
+
+        other.markPruned(7);
+        other.clearPrunedAbove(5);
+        assertThat(index.prunedAbove(5)).isFalse();
+        assertThat(index.contains(2)).isFalse();
+    }
+}